@@ -0,0 +1,56 @@
+package com.softwarejoint.bert.benchmark;
+
+import com.softwarejoint.bert.BertDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BertDecoder.decodeAny over each fixture and combination of decoder options.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecodeBenchmark {
+
+    @Param({"small_rpc", "large_proplist", "binary_key_map", "deep_nesting", "big_integers", "ids_and_timestamps", "large_binary"})
+    public String fixture;
+
+    @Param({"false", "true"})
+    public boolean propListsAsMap;
+
+    @Param({"false", "true"})
+    public boolean atomAsString;
+
+    @Param({"false", "true"})
+    public boolean compactContainers;
+
+    private byte[] data;
+    private BertDecoder decoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = Fixtures.load(fixture);
+        decoder = new BertDecoder()
+                .setDecodePropListsAsMap(propListsAsMap)
+                .setDecodeAtomAsString(atomAsString)
+                .setDecodeCompactContainers(compactContainers);
+
+        //fail fast instead of measuring an exception path
+        decoder.decodeAny(data);
+    }
+
+    @Benchmark
+    public Object decodeAny() throws IOException {
+        return decoder.decodeAny(data);
+    }
+}
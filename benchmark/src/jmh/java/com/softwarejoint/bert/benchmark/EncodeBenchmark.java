@@ -0,0 +1,49 @@
+package com.softwarejoint.bert.benchmark;
+
+import com.softwarejoint.bert.BertDecoder;
+import com.softwarejoint.bert.BertEncoder;
+import com.softwarejoint.bert.BufferPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BertEncoder.encodeAny of the object graph each fixture decodes to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+
+    @Param({"small_rpc", "large_proplist", "binary_key_map", "deep_nesting", "big_integers", "ids_and_timestamps", "large_binary"})
+    public String fixture;
+
+    @Param({"false", "true"})
+    public boolean pooledOutput;
+
+    private Object term;
+    private BertEncoder encoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        term = new BertDecoder().decodeAny(Fixtures.load(fixture));
+        encoder = new BertEncoder()
+                .setBufferPool(pooledOutput ? BufferPool.shared() : null);
+
+        encoder.encodeAny(term);
+    }
+
+    @Benchmark
+    public byte[] encodeAny() {
+        return encoder.encodeAny(term);
+    }
+}
@@ -0,0 +1,33 @@
+package com.softwarejoint.bert.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * term_to_binary output checked in under resources/fixtures, see gen_fixtures.escript.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name + ".bin");
+        if (in == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
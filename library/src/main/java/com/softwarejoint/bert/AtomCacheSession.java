@@ -0,0 +1,61 @@
+package com.softwarejoint.bert;
+
+/**
+ * Per connection atom cache used with distribution headers. Atoms sent once with a
+ * distribution header are remembered by both peers and afterwards travel as a one byte
+ * ATOM_CACHE_REF.
+ * <p>
+ * Share one session between the {@link BertEncoder} and {@link BertDecoder} of a connection.
+ * The outgoing half is only touched by the encoder and the incoming half only by the decoder,
+ * so a reader and a writer thread may use it at the same time; each half is not thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class AtomCacheSession implements DistributionHeader {
+
+    private final String[] outgoing = new String[ATOM_CACHE_SIZE];
+
+    private final String[] incoming = new String[ATOM_CACHE_SIZE];
+    private final Object[] incomingAtoms = new Object[ATOM_CACHE_SIZE];
+    private final Object[] incomingStrings = new Object[ATOM_CACHE_SIZE];
+
+    static int slotFor(String atom) {
+        int hash = atom.hashCode();
+        return (hash ^ (hash >>> 11) ^ (hash >>> 22)) & (ATOM_CACHE_SIZE - 1);
+    }
+
+    boolean isCached(int slot, String atom) {
+        return atom.equals(outgoing[slot]);
+    }
+
+    void cacheOutgoing(int slot, String atom) {
+        outgoing[slot] = atom;
+    }
+
+    void cacheIncoming(int slot, String atom) {
+        if (atom.equals(incoming[slot])) return;
+
+        incoming[slot] = atom;
+        incomingAtoms[slot] = atom.isEmpty() ? null : AtomTable.toValue(atom, false);
+        incomingStrings[slot] = atom.isEmpty() ? null : AtomTable.toValue(atom, true);
+    }
+
+    boolean hasIncoming(int slot) {
+        return incoming[slot] != null;
+    }
+
+    Object getIncoming(int slot, boolean asString) {
+        return asString ? incomingStrings[slot] : incomingAtoms[slot];
+    }
+
+    /**
+     * Forgets every cached atom, e.g. after reconnecting to the peer.
+     */
+    public void clear() {
+        for (int i = 0; i < ATOM_CACHE_SIZE; i++) {
+            outgoing[i] = null;
+            incoming[i] = null;
+            incomingAtoms[i] = null;
+            incomingStrings[i] = null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.softwarejoint.bert;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Bounded intern table for decoded atoms, keyed on their raw bytes. A hit returns the
+ * canonical {@link BertAtom}, String or Boolean without decoding or allocating anything.
+ * <p>
+ * The table is direct mapped: a colliding atom replaces the previous entry, so memory stays
+ * bounded whatever the peer sends. Entries are immutable, which makes a table safe to share
+ * between decoders on different threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class AtomTable {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    static final int MAX_ATOM_BYTES = 255;
+
+    private final Entry[] entries;
+    private final int mask;
+
+    public AtomTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AtomTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        entries = new Entry[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Returns the canonical value for the atom stored at {@code offset} of {@code buffer}.
+     * The buffer position is not changed.
+     */
+    Object intern(ByteBuffer buffer, int offset, int length, Charset charset, boolean asString) {
+        if (length > MAX_ATOM_BYTES) {
+            return toValue(decode(buffer, offset, length, charset), asString);
+        }
+
+        int hash = hash(buffer, offset, length);
+        int index = hash & mask;
+
+        Entry entry = entries[index];
+        if (entry == null || entry.hash != hash || entry.charset != charset
+                || !entry.matches(buffer, offset, length)) {
+            entry = new Entry(hash, buffer, offset, length, charset);
+            entries[index] = entry;
+        }
+
+        return asString ? entry.string : entry.atom;
+    }
+
+    public void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+    }
+
+    static Object toValue(String atom, boolean asString) {
+        if ("true".equalsIgnoreCase(atom)) return Boolean.TRUE;
+        else if ("false".equalsIgnoreCase(atom)) return Boolean.FALSE;
+
+        if (asString) return atom;
+        return new BertAtom(atom);
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, charset);
+        }
+
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = buffer.get(offset + i);
+        }
+        return new String(data, charset);
+    }
+
+    private static int hash(ByteBuffer buffer, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buffer.get(offset + i) & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry {
+
+        final int hash;
+        final byte[] bytes;
+        final Charset charset;
+        final Object atom;
+        final Object string;
+
+        Entry(int hash, ByteBuffer buffer, int offset, int length, Charset charset) {
+            this.hash = hash;
+            this.charset = charset;
+            bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+
+            String decoded = new String(bytes, charset);
+            atom = toValue(decoded, false);
+            string = toValue(decoded, true);
+        }
+
+        boolean matches(ByteBuffer buffer, int offset, int length) {
+            if (bytes.length != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.get(offset + i)) return false;
+            }
+            return true;
+        }
+    }
+}
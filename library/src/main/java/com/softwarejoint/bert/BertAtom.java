@@ -6,7 +6,11 @@ public class BertAtom{
 
     private static final int ATOM_EXT_MAX_LEN = 255;
 
+    static final BertAtom TRUE = new BertAtom("true");
+    static final BertAtom FALSE = new BertAtom("false");
+
     private String atom;
+    private volatile byte[] encoded;
 
     public BertAtom(String atom) throws IllegalArgumentException{
         if (TextUtils.isEmpty(atom)) {
@@ -22,6 +26,46 @@ public class BertAtom{
         return atom;
     }
 
+    /**
+     * Complete SMALL_ATOM_EXT (or ATOM_EXT when longer than 255 bytes) encoding of this atom,
+     * or the UTF8 variants when it is not ASCII, computed once so the encoder can copy it
+     * straight into the output.
+     */
+    byte[] encoded() {
+        byte[] bytes = encoded;
+        if (bytes != null) return bytes;
+
+        byte[] text = atom.getBytes(TextCodec.UTF8);
+        boolean ascii = text.length == atom.length();
+
+        if (text.length <= DistributionHeader.SMALL_INTEGER_EXT_MAX_VAL) {
+            bytes = new byte[text.length + 2];
+            bytes[0] = ascii ? DistributionHeader.SMALL_ATOM_EXT : DistributionHeader.SMALL_ATOM_UTF8_EXT;
+            bytes[1] = (byte) text.length;
+            System.arraycopy(text, 0, bytes, 2, text.length);
+        } else {
+            bytes = new byte[text.length + 3];
+            bytes[0] = ascii ? DistributionHeader.ATOM_EXT : DistributionHeader.ATOM_UTF8_EXT;
+            bytes[1] = (byte) (text.length >>> 8);
+            bytes[2] = (byte) text.length;
+            System.arraycopy(text, 0, bytes, 3, text.length);
+        }
+
+        encoded = bytes;
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        return o instanceof BertAtom && atom.equals(((BertAtom) o).atom);
+    }
+
+    @Override
+    public int hashCode() {
+        return atom.hashCode();
+    }
+
     @Override
     public String toString() {
         return atom;
@@ -0,0 +1,17 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes one Java type directly from and to the buffer, without the generic
+ * object graph. Implementations are generated for classes annotated with {@code @BertTerm}.
+ * <p>
+ * The encoder and decoder are passed in for members of types the codec does not handle itself.
+ */
+public interface BertCodec<T> {
+
+    void encode(T value, BertOutput out, BertEncoder encoder);
+
+    T decode(ByteBuffer in, BertDecoder decoder) throws InvalidObjectException;
+}
@@ -3,24 +3,72 @@ package com.softwarejoint.bert;
 import android.text.TextUtils;
 
 import java.io.InvalidObjectException;
-import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/**
+ * Holds per call working state and is not thread safe; share a {@link BertDecoderConfig} instead.
+ * <p>
+ * Nested lists, tuples and maps are kept on an explicit stack, so any depth decodes on a small
+ * thread stack. Every declared length is checked against the bytes left before anything is
+ * allocated for it, and {@link #setMaxDepth(int)}, {@link #setMaxAllocation(long)} and
+ * {@link #setMaxElements(long)} bound what a single term may cost.
+ */
 @SuppressWarnings("unused")
 public final class BertDecoder extends Bert implements DistributionHeader {
 
-    private static final BigInteger MAX_LONG_VAL = BigInteger.valueOf(Long.MAX_VALUE);
+    //returned by decodeNext() when a container was opened instead of a value decoded
+    private static final Object OPENED = new Object();
 
     private boolean atomAsString;
     private boolean propListsAsMap;
     private boolean mapKeysAsString;
     private boolean shortOrByteAsInt;
+    private boolean binaryAsSlice;
+    private boolean numericListsAsArrays;
+    private boolean compactContainers;
     private ArrayList<Object> keys = new ArrayList<>();
+    private AtomTable atomTable = new AtomTable();
+
+    private AtomCacheSession atomCache;
+    private final int[] atomCacheRefs = new int[ATOM_CACHE_MAX_REFS];
+    private int atomCacheRefCount;
 
     private ByteBuffer buffer;
+    private final TextCodec text = new TextCodec();
+
+    private final TermStack stack = new TermStack(this);
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxAllocation = Long.MAX_VALUE;
+    private long maxElements = Long.MAX_VALUE;
+    private long allocated;
+    private long elements;
+    private int baseDepth;
+    //charged instead of allocated and elements while decoding part of a split term
+    private SharedBudget sharedBudget;
+
+    private BertMetricsListener metricsListener;
+    private BertTermStats termStats;
+
+    private BertTypeRegistry typeRegistry = BertTypeRegistry.shared();
+    private BertCodec<?>[] tagDecoders;
+
+    private Inflater inflater;
+    private byte[] inflateInput;
+    private byte[] inflateOutput;
+    private BertStreamDecoder inflatedStream;
+    private InflatedTerm inflatedTerm;
 
     public BertDecoder setDecodeAtomAsString(boolean enabled) {
         atomAsString = enabled;
@@ -42,6 +90,106 @@ public final class BertDecoder extends Bert implements DistributionHeader {
         return this;
     }
 
+    /**
+     * Return BINARY_EXT payloads as read-only {@link ByteBuffer} slices of the source
+     * instead of copying them into a new byte[]. The slices share the source memory, so
+     * it must not be reused while they are still referenced.
+     */
+    public BertDecoder setDecodeBinaryAsSlice(boolean enabled) {
+        binaryAsSlice = enabled;
+        return this;
+    }
+
+    /**
+     * Return proper lists holding only integers as int[] (or long[] when some need 64 bits)
+     * and lists holding only floats as double[], without boxing each element.
+     */
+    public BertDecoder setDecodeNumericListsAsArrays(boolean enabled) {
+        numericListsAsArrays = enabled;
+        return this;
+    }
+
+    /**
+     * Return lists as immutable {@link BertList} and maps and proplists as immutable
+     * {@link BertMap}, each backed by one array of exactly its size, instead of ArrayList and
+     * LinkedHashMap. Tuples are sized exactly either way.
+     */
+    public BertDecoder setDecodeCompactContainers(boolean enabled) {
+        compactContainers = enabled;
+        return this;
+    }
+
+    /**
+     * Intern decoded atoms in {@code table}, which may be shared with other decoders.
+     * Every decoder starts with a private table; pass null to decode each atom afresh.
+     */
+    public BertDecoder setAtomTable(AtomTable table) {
+        atomTable = table;
+        return this;
+    }
+
+    /**
+     * Resolve distribution headers and ATOM_CACHE_REF against the per connection {@code session}.
+     */
+    public BertDecoder setAtomCacheSession(AtomCacheSession session) {
+        atomCache = session;
+        return this;
+    }
+
+    /**
+     * Registry whose tag decoders replace the built in decoding, {@link BertTypeRegistry#shared()}
+     * by default.
+     */
+    public BertDecoder setTypeRegistry(BertTypeRegistry registry) {
+        typeRegistry = (registry != null) ? registry : BertTypeRegistry.shared();
+        return this;
+    }
+
+    /**
+     * Reject terms nesting lists, tuples and maps deeper than {@code depth}; unlimited by default.
+     */
+    public BertDecoder setMaxDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Invalid max depth " + depth);
+        }
+        maxDepth = depth;
+        return this;
+    }
+
+    /**
+     * Reject terms whose binaries, strings and big integers copy more than {@code bytes} out of
+     * the input, or whose COMPRESSED body inflates to more; unlimited by default. Binaries
+     * decoded as slices and atoms are not counted.
+     */
+    public BertDecoder setMaxAllocation(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid max allocation " + bytes);
+        }
+        maxAllocation = bytes;
+        return this;
+    }
+
+    /**
+     * Reject terms declaring more than {@code count} list, tuple and map elements in total,
+     * a map pair counting as two; unlimited by default.
+     */
+    public BertDecoder setMaxElements(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid max elements " + count);
+        }
+        maxElements = count;
+        return this;
+    }
+
+    /**
+     * Report the size, time, tags and depth of every term to {@code listener}; null disables.
+     */
+    public BertDecoder setMetricsListener(BertMetricsListener listener) {
+        metricsListener = listener;
+        termStats = (listener != null) ? new BertTermStats() : null;
+        return this;
+    }
+
     public BertDecoder addBinaryValuesAsStringForKey(Object key) {
         keys.add(key);
         return this;
@@ -52,23 +200,287 @@ public final class BertDecoder extends Bert implements DistributionHeader {
     }
 
     public Object decodeAny(byte[] data) throws InvalidObjectException {
-        buffer = ByteBuffer.wrap(data);
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    public Object decode(byte[] data, int offset, int length) throws InvalidObjectException {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decodes one term between the position and limit of {@code data}, which may be a heap,
+     * direct or memory-mapped buffer. On success the position is moved past the term.
+     */
+    public Object decode(ByteBuffer data) throws InvalidObjectException {
+        if (termStats == null) return decodeFramed(data);
+
+        int start = data.position();
+        beginTerm();
+        Object decoded = decodeFramed(data);
+        endTerm(data.position() - start);
+        return decoded;
+    }
 
-        switch (buffer.get()) {
-            case MAGIC:
+    private Object decodeFramed(ByteBuffer data) throws InvalidObjectException {
+        buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        atomCacheRefCount = 0;
+        tagDecoders = typeRegistry.tagDecoders();
+        beginBudget();
+
+        if (!buffer.hasRemaining() || buffer.get() != MAGIC) {
+            throw new InvalidObjectException("Invalid Format");
+        }
+        if (!buffer.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        Object decoded;
+        switch (buffer.get(buffer.position())) {
+            case DIST_HEADER:
+                buffer.get();
+                decodeDistributionHeader();
+                decoded = decode();
+                break;
+            case COMPRESSED:
+                buffer.get();
+                decoded = decodeCompressed();
                 break;
             default:
-                throw new InvalidObjectException("Invalid Format");
+                decoded = decode();
+        }
+
+        data.position(buffer.position());
+        return decoded;
+    }
+
+    public <T> T decodeAny(byte[] data, BertCodec<T> codec) throws InvalidObjectException {
+        return decode(ByteBuffer.wrap(data), codec);
+    }
+
+    /**
+     * Decodes one term with a generated or hand written {@code codec}.
+     * On success the position of {@code data} is moved past the term.
+     */
+    public <T> T decode(ByteBuffer data, BertCodec<T> codec) throws InvalidObjectException {
+        if (termStats == null) return decodeFramed(data, codec);
+
+        int start = data.position();
+        beginTerm();
+        T decoded = decodeFramed(data, codec);
+        endTerm(data.position() - start);
+        return decoded;
+    }
+
+    private <T> T decodeFramed(ByteBuffer data, BertCodec<T> codec) throws InvalidObjectException {
+        buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        atomCacheRefCount = 0;
+        tagDecoders = typeRegistry.tagDecoders();
+        beginBudget();
+
+        if (!buffer.hasRemaining() || buffer.get() != MAGIC) {
+            throw new InvalidObjectException("Invalid Format");
+        }
+        if (!buffer.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        ByteBuffer view = buffer;
+        switch (buffer.get(buffer.position())) {
+            case DIST_HEADER:
+                buffer.get();
+                decodeDistributionHeader();
+                break;
+            case COMPRESSED:
+                buffer.get();
+                view = inflate(buffer);
+                break;
+        }
+
+        int position = buffer.position();
+        T decoded = codec.decode(view, this);
+        data.position((view == buffer) ? view.position() : position);
+        return decoded;
+    }
+
+    /**
+     * Decodes the term at the position of {@code in}, without MAGIC, and moves the position
+     * past it. Used by codecs for members they do not decode themselves.
+     */
+    public Object decodeValue(ByteBuffer in) throws InvalidObjectException {
+        return decodeNested(in);
+    }
+
+    public LazyTerm decodeLazy(byte[] data) throws InvalidObjectException {
+        return decodeLazy(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Validates the term at the position of {@code data} with one skipping pass and returns
+     * a view that decodes its parts on access. On success the position is moved past the term.
+     * COMPRESSED terms are inflated first; distribution headers are not supported.
+     */
+    public LazyTerm decodeLazy(ByteBuffer data) throws InvalidObjectException {
+        ByteBuffer view = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        atomCacheRefCount = 0;
+        beginBudget();
+
+        if (!view.hasRemaining() || view.get() != MAGIC) {
+            throw new InvalidObjectException("Invalid Format");
+        }
+        if (!view.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        switch (view.get(view.position())) {
+            case DIST_HEADER:
+                throw new InvalidObjectException("Distribution header not supported by lazy decoding");
+            case COMPRESSED:
+                view.get();
+                ByteBuffer inflated = inflate(view);
+                data.position(view.position());
+                return new LazyTerm(this, inflated, 0, TermScanner.skip(inflated, 0));
+        }
+
+        int position = view.position();
+        int end = TermScanner.skip(view, position);
+        data.position(end);
+        return new LazyTerm(this, view, position, end);
+    }
+
+    public Object extract(byte[] data, BertPath path) throws InvalidObjectException {
+        return extract(ByteBuffer.wrap(data), path);
+    }
+
+    /**
+     * Decodes only the part of the term at the position of {@code data} that {@code path}
+     * points to, skipping everything else at byte level. Returns null when the path does not
+     * exist. The position of {@code data} is not changed.
+     */
+    public Object extract(ByteBuffer data, BertPath path) throws InvalidObjectException {
+        LazyTerm target = extractLazy(data, path);
+        return (target != null) ? target.decode() : null;
+    }
+
+    /**
+     * Like {@link #extract(ByteBuffer, BertPath)} but returns a {@link LazyTerm} view of the
+     * target, e.g. to forward its bytes untouched.
+     */
+    public LazyTerm extractLazy(ByteBuffer data, BertPath path) throws InvalidObjectException {
+        ByteBuffer view = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        atomCacheRefCount = 0;
+        beginBudget();
+
+        if (!view.hasRemaining() || view.get() != MAGIC) {
+            throw new InvalidObjectException("Invalid Format");
+        }
+        if (!view.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        switch (view.get(view.position())) {
+            case DIST_HEADER:
+                throw new InvalidObjectException("Distribution header not supported by path extraction");
+            case COMPRESSED:
+                view.get();
+                view = inflate(view);
+                break;
         }
 
-        return decode();
+        int position = path.locate(this, view, view.position());
+        if (position < 0) return null;
+
+        return new LazyTerm(this, view, position, -1);
+    }
+
+    /**
+     * Decodes a single term without the MAGIC prefix, used by the other readers of
+     * this package so they share the conversion options and limits of this decoder.
+     */
+    Object decodeTerm(ByteBuffer data) throws InvalidObjectException {
+        beginBudget();
+        return decodeNested(data);
+    }
+
+    /**
+     * Decodes one part of a term split by {@link ParallelDecoder}, charged to the budget begun
+     * with {@link #beginBudget(SharedBudget)}.
+     *
+     * @param depth nesting of the part within the whole term, counted against {@link #setMaxDepth(int)}
+     */
+    Object decodeTerm(ByteBuffer data, int depth) throws InvalidObjectException {
+        baseDepth = depth;
+        return decodeNested(data);
+    }
+
+    /**
+     * Like {@link #decodeTerm(ByteBuffer)} for a part of the term being decoded, charged to
+     * the same budget.
+     */
+    Object decodeNested(ByteBuffer data) throws InvalidObjectException {
+        ByteBuffer outer = buffer;
+        buffer = data;
+        tagDecoders = typeRegistry.tagDecoders();
+        try {
+            return decode();
+        } finally {
+            buffer = outer;
+        }
     }
 
+    /**
+     * Decodes the term at the position of {@link #buffer} in a loop instead of recursing: a
+     * container is pushed on the {@link TermStack}, and every finished value is added to the
+     * container on top, which is built in turn once its last element arrived. Codec hooks may
+     * call back in through {@link #decodeValue(ByteBuffer)}; their containers stack above those
+     * of the caller.
+     */
     private Object decode() throws InvalidObjectException {
+        int base = stack.depth();
+        try {
+            return decodeFrom(base);
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("Truncated term");
+        } finally {
+            //containers left behind by a failure must not keep partial values alive
+            stack.clear(base);
+        }
+    }
+
+    private Object decodeFrom(int base) throws InvalidObjectException {
+        while (true) {
+            Object value;
+
+            require(1);
+            if (stack.depth() > base && stack.isTail() && buffer.get(buffer.position()) == NIL_EXT) {
+                buffer.get();
+                value = stack.pop();
+            } else {
+                value = decodeNext();
+                if (value == OPENED) continue;
+            }
+
+            value = stack.complete(value, base);
+            if (value != TermStack.PENDING) return value;
+        }
+    }
+
+    /**
+     * @return the value of a scalar or an empty container, otherwise {@link #OPENED}
+     */
+    private Object decodeNext() throws InvalidObjectException {
+        require(1);
+        if (tagDecoders != null) {
+            BertCodec<?> hook = tagDecoders[buffer.get(buffer.position()) & 0xff];
+            if (hook != null) return hook.decode(buffer, this);
+        }
+
         buffer.mark();
-        switch (buffer.get()) {
+        byte tag = buffer.get();
+        if (termStats != null) termStats.tag(tag);
+
+        switch (tag) {
             case NIL_EXT:
-                return new ArrayList<>();
+                return emptyList();
             case SMALL_INTEGER_EXT:
                 return decodeShortOrByte();
             case INTEGER_EXT:
@@ -85,51 +497,50 @@ public final class BertDecoder extends Bert implements DistributionHeader {
                 return decodeAtom(ATOM_EXT);
             case SMALL_ATOM_EXT:
                 return decodeAtom(SMALL_ATOM_EXT);
+            case ATOM_UTF8_EXT:
+                return decodeAtom(ATOM_UTF8_EXT);
+            case SMALL_ATOM_UTF8_EXT:
+                return decodeAtom(SMALL_ATOM_UTF8_EXT);
             case STRING_EXT:
                 return decodeString();
             case BINARY_EXT:
                 return decodeBinary();
             case LIST_EXT:
-                return decodeList();
+                return openList();
             case SMALL_TUPLE_EXT:
-                return decodeTuple(SMALL_TUPLE_EXT);
+                return open(TermStack.TUPLE, getUnsignedByte());
             case LARGE_TUPLE_EXT:
-                return decodeTuple(LARGE_TUPLE_EXT);
+                return open(TermStack.TUPLE, getUnsignedInt());
             case MAP_EXT:
-                return decodeMap();
+                return open(TermStack.MAP, 2 * getUnsignedInt());
+            case ATOM_CACHE_REF:
+                return decodeAtomCacheRef();
             default:
                 buffer.reset();
                 throw new InvalidObjectException("Invalid Type " + buffer.get());
         }
     }
 
-    private Object decodeShortOrByte() {
-        Short s = getUnsignedByte();
-        if (Byte.MIN_VALUE <= s && s <= Byte.MAX_VALUE) {
-            return shortOrByteAsInt ? s.intValue() : s.byteValue();
-        }
-
-        return shortOrByteAsInt ? s.intValue() : s;
+    private Integer decodeShortOrByte() {
+        return NumberCodec.smallInteger(getUnsignedByte());
     }
 
     private Integer decodeInteger() {
         return buffer.getInt();
     }
 
-    private Object decodeDoubleOrFloat(@ExternalFormat int minorVersion) {
-        Double d = null;
+    private Object decodeDoubleOrFloat(@ExternalFormat int minorVersion) throws InvalidObjectException {
+        double d;
 
-        switch (minorVersion) {
-            case ExternalFormat.OLD:
-                d = Double.valueOf(decodeString(FLOAT_LENGTH));
-                break;
-            case ExternalFormat.NEW:
-                d = buffer.getDouble();
-                break;
+        if (minorVersion == ExternalFormat.OLD) {
+            require(FLOAT_LENGTH);
+            d = NumberCodec.getOldFloat(buffer);
+        } else {
+            d = buffer.getDouble();
         }
 
-        if (d != null && Float.MIN_VALUE <= d && d <= Float.MAX_VALUE) {
-            return d.floatValue();
+        if (Float.MIN_VALUE <= d && d <= Float.MAX_VALUE) {
+            return (float) d;
         }
 
         return d;
@@ -151,21 +562,16 @@ public final class BertDecoder extends Bert implements DistributionHeader {
                 break;
         }
 
-        int signum = (buffer.get() == 0) ? 1 : -1;
-        byte[] value = new byte[byteCount];
-        for (int i = byteCount; i > 0; i--) {
-            value[i - 1] = buffer.get();
-        }
-
-        BigInteger bigInteger = new BigInteger(signum, value);
+        require(byteCount + 1L);
+        reserve(byteCount);
 
-        if (bigInteger.compareTo(MAX_LONG_VAL) == 1) return bigInteger;
-        return bigInteger.longValue();
+        return NumberCodec.getBig(buffer, byteCount);
     }
 
-    private Object decodeAtom(int tag) {
+    private Object decodeAtom(int tag) throws InvalidObjectException {
         int atomLength = 0;
         String atom = null;
+        Charset charset = TextCodec.LATIN1;
 
         switch (tag) {
             case ATOM_EXT:
@@ -174,107 +580,467 @@ public final class BertDecoder extends Bert implements DistributionHeader {
             case SMALL_ATOM_EXT:
                 atomLength = getUnsignedByte();
                 break;
+            case ATOM_UTF8_EXT:
+                atomLength = getUnsignedShort();
+                charset = TextCodec.UTF8;
+                break;
+            case SMALL_ATOM_UTF8_EXT:
+                atomLength = getUnsignedByte();
+                charset = TextCodec.UTF8;
+                break;
         }
 
-        if (atomLength > 0) {
-            atom = decodeString(atomLength);
+        if (atomLength == 0) return null;
+        require(atomLength);
+
+        if (atomTable != null) {
+            int position = buffer.position();
+            buffer.position(position + atomLength);
+            return atomTable.intern(buffer, position, atomLength, charset, atomAsString);
         }
 
+        atom = decodeString(atomLength, charset);
+
         if (TextUtils.isEmpty(atom)) return null;
 
-        if ("true".equalsIgnoreCase(atom)) return Boolean.TRUE;
-        else if ("false".equalsIgnoreCase(atom)) return Boolean.FALSE;
+        return AtomTable.toValue(atom, atomAsString);
+    }
+
+    /**
+     * Inflates in chunks straight into a {@link BertStreamDecoder}, so the uncompressed term
+     * never exists as a whole in memory.
+     */
+    private Object decodeCompressed() throws InvalidObjectException {
+        require(4);
+        long size = getUnsignedInt();
+        ByteBuffer source = buffer;
 
-        if (atomAsString) return atom;
-        return new BertAtom(atom);
+        //only the parts are allocated, but a body inflating beyond the budget is rejected
+        checkAllocation(size);
+
+        if (inflater == null) inflater = new Inflater();
+        else inflater.reset();
+
+        if (inflatedStream == null) {
+            inflateOutput = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+            inflatedTerm = new InflatedTerm();
+            inflatedStream = new BertStreamDecoder(this, inflatedTerm);
+        }
+
+        inflatedTerm.term = null;
+        inflatedTerm.done = false;
+        inflatedStream.beginTerm();
+
+        long inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!source.hasRemaining()) {
+                        throw new InvalidObjectException("Truncated compressed term");
+                    }
+                    setInflaterInput(source);
+                }
+
+                int count = inflater.inflate(inflateOutput);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new InvalidObjectException("Invalid compressed term");
+                }
+
+                inflated += count;
+                if (inflated > size) {
+                    throw new InvalidObjectException("Compressed term larger than declared");
+                }
+
+                if (count > 0) inflatedStream.feed(ByteBuffer.wrap(inflateOutput, 0, count));
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidObjectException("Invalid compressed term: " + e.getMessage());
+        } finally {
+            buffer = source;
+        }
+
+        source.position(source.position() - inflater.getRemaining());
+
+        if (inflated != size || !inflatedTerm.done) {
+            throw new InvalidObjectException("Invalid compressed term");
+        }
+        return inflatedTerm.term;
     }
 
-    private String decodeString() {
+    /**
+     * Inflates a whole COMPRESSED term into a new buffer, for readers that need random access.
+     */
+    ByteBuffer inflate(ByteBuffer source) throws InvalidObjectException {
+        if (source.remaining() < 4) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        long size = ((long) source.getInt() & 0xffffffffL);
+        if (size > Integer.MAX_VALUE) {
+            throw new InvalidObjectException("Max byte array size exceeded");
+        }
+        reserve(size);
+
+        if (inflater == null) inflater = new Inflater();
+        else inflater.reset();
+
+        byte[] inflated = new byte[(int) size];
+        int count = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!source.hasRemaining()) {
+                        throw new InvalidObjectException("Truncated compressed term");
+                    }
+                    setInflaterInput(source);
+                }
+
+                int read = inflater.inflate(inflated, count, inflated.length - count);
+                if (read == 0 && (inflater.needsDictionary() || count == inflated.length)) {
+                    if (inflater.finished()) break;
+                    throw new InvalidObjectException("Invalid compressed term");
+                }
+                count += read;
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidObjectException("Invalid compressed term: " + e.getMessage());
+        }
+
+        source.position(source.position() - inflater.getRemaining());
+
+        if (count != size) {
+            throw new InvalidObjectException("Invalid compressed term");
+        }
+        return ByteBuffer.wrap(inflated);
+    }
+
+    private void setInflaterInput(ByteBuffer source) {
+        int count = source.remaining();
+
+        if (source.hasArray()) {
+            inflater.setInput(source.array(), source.arrayOffset() + source.position(), count);
+        } else {
+            if (inflateInput == null) inflateInput = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+            count = Math.min(count, inflateInput.length);
+            source.duplicate().get(inflateInput, 0, count);
+            inflater.setInput(inflateInput, 0, count);
+        }
+
+        source.position(source.position() + count);
+    }
+
+    /**
+     * Resets the per term state before a term read by {@link BertStreamDecoder}.
+     */
+    void beginStreamedTerm() {
+        atomCacheRefCount = 0;
+        beginBudget();
+    }
+
+    /**
+     * Reads a complete distribution header without its tag, for {@link BertStreamDecoder}.
+     */
+    void decodeDistributionHeader(ByteBuffer header) throws InvalidObjectException {
+        ByteBuffer outer = buffer;
+        buffer = header;
+        try {
+            decodeDistributionHeader();
+        } finally {
+            buffer = outer;
+        }
+    }
+
+    private void decodeDistributionHeader() throws InvalidObjectException {
+        if (atomCache == null) {
+            throw new InvalidObjectException("Distribution header without atom cache session");
+        }
+
+        require(1);
+        int refCount = getUnsignedByte();
+        if (refCount == 0) return;
+
+        int flags = buffer.position();
+        require(refCount / 2 + 1);
+        buffer.position(flags + refCount / 2 + 1);
+        boolean longAtoms = (getFlagNibble(flags, refCount) & 1) != 0;
+
+        for (int i = 0; i < refCount; i++) {
+            int nibble = getFlagNibble(flags, i);
+            require(1);
+            int slot = ((nibble & 7) << 8) | getUnsignedByte();
+
+            if ((nibble & 8) != 0) {
+                require(longAtoms ? 2 : 1);
+                int atomLength = longAtoms ? getUnsignedShort() : getUnsignedByte();
+                require(atomLength);
+                byte[] text = new byte[atomLength];
+                buffer.get(text);
+                atomCache.cacheIncoming(slot, new String(text, utf8Charset));
+            } else if (!atomCache.hasIncoming(slot)) {
+                throw new InvalidObjectException("Atom cache entry " + slot + " not set");
+            }
+
+            atomCacheRefs[i] = slot;
+        }
+
+        atomCacheRefCount = refCount;
+    }
+
+    private int getFlagNibble(int flags, int index) {
+        int b = buffer.get(flags + index / 2);
+        return ((index & 1) == 0) ? (b & 0x0f) : ((b >>> 4) & 0x0f);
+    }
+
+    private Object decodeAtomCacheRef() throws InvalidObjectException {
+        int ref = getUnsignedByte();
+        if (ref >= atomCacheRefCount) {
+            throw new InvalidObjectException("Invalid atom cache reference " + ref);
+        }
+
+        return atomCache.getIncoming(atomCacheRefs[ref], atomAsString);
+    }
+
+    private String decodeString() throws InvalidObjectException {
         int byteCount = getUnsignedShort();
-        return decodeString(byteCount);
+        reserve(byteCount);
+        return decodeString(byteCount, TextCodec.LATIN1);
     }
 
-    private byte[] decodeBinary() {
+    private Object decodeBinary() throws InvalidObjectException {
         long byteCount = getUnsignedInt();
+        require(byteCount);
+
+        if (binaryAsSlice) {
+            ByteBuffer slice = buffer.slice();
+            slice.limit((int) byteCount);
+            buffer.position(buffer.position() + (int) byteCount);
+            return slice.asReadOnlyBuffer();
+        }
+
+        reserve(byteCount);
         byte[] data = new byte[(int) byteCount];
         buffer.get(data);
         return data;
     }
 
-    private Object decodeList() throws InvalidObjectException {
+    private Object openList() throws InvalidObjectException {
         long numElements = getUnsignedInt();
-        boolean canDecodeAsMap = propListsAsMap;
-
-        ArrayList<Object> list = new ArrayList<>();
 
-        for (int i = 0; i < numElements; i++) {
-            Object decoded = decode();
-            canDecodeAsMap =
-                    canDecodeAsMap &&
-                            decoded instanceof BertTuple && ((BertTuple) decoded).isKV();
-            list.add(decoded);
+        if (numericListsAsArrays && numElements > 0) {
+            Object array = decodeNumericArray(numElements);
+            if (array != null) return array;
         }
 
-        buffer.mark();
-        if (buffer.get() != NIL_EXT) buffer.reset();
+        return open(TermStack.LIST, numElements);
+    }
 
-        if (canDecodeAsMap) {
-            Map<Object, Object> map = new LinkedHashMap<>();
-            for (int i = 0; i < list.size(); i++) {
-                BertTuple tuple = (BertTuple) list.get(i);
-                map.put(tuple.get(0), tuple.get(1));
-            }
+    /**
+     * Pushes a container of {@code children} terms, or returns it right away when empty.
+     */
+    private Object open(int type, long children) throws InvalidObjectException {
+        //every child takes at least one byte, a list also its tail
+        require((type == TermStack.LIST) ? children + 1 : children);
 
-            return map;
-        }
-        return list;
+        int depth = stack.depth() + 1;
+        checkNesting(depth, children);
+        if (termStats != null) termStats.reachDepth(depth);
+
+        return stack.push(type, children) ? stack.pop() : OPENED;
     }
 
-    private BertTuple decodeTuple(int tag) throws InvalidObjectException {
-        long elements = 0;
+    private static final int NUMERIC_NONE = 0;
+    private static final int NUMERIC_INT = 1;
+    private static final int NUMERIC_LONG = 2;
+    private static final int NUMERIC_DOUBLE = 3;
 
-        switch (tag) {
-            case SMALL_TUPLE_EXT:
-                elements = getUnsignedByte();
+    /**
+     * @return a primitive array, or null when the list is not a proper homogeneous numeric list
+     */
+    private Object decodeNumericArray(long numElements) throws InvalidObjectException {
+        int kind = scanNumericList(numElements);
+        if (kind == NUMERIC_NONE) return null;
+
+        checkNesting(stack.depth() + 1, numElements);
+        if (termStats != null) termStats.reachDepth(stack.depth() + 1);
+
+        int count = (int) numElements;
+        Object array;
+
+        switch (kind) {
+            case NUMERIC_INT:
+                int[] ints = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ints[i] = (buffer.get() == SMALL_INTEGER_EXT) ? getUnsignedByte() : buffer.getInt();
+                }
+                array = ints;
                 break;
-            case LARGE_TUPLE_EXT:
-                elements = getUnsignedInt();
+            case NUMERIC_LONG:
+                long[] longs = new long[count];
+                for (int i = 0; i < count; i++) {
+                    byte tag = buffer.get();
+                    if (tag == SMALL_INTEGER_EXT) longs[i] = getUnsignedByte();
+                    else if (tag == INTEGER_EXT) longs[i] = buffer.getInt();
+                    else longs[i] = NumberCodec.getLong(buffer, getUnsignedByte());
+                }
+                array = longs;
+                break;
+            default:
+                double[] doubles = new double[count];
+                for (int i = 0; i < count; i++) {
+                    buffer.get();
+                    doubles[i] = buffer.getDouble();
+                }
+                array = doubles;
                 break;
         }
 
-        BertTuple tuple = new BertTuple();
+        buffer.get();       //NIL_EXT tail, checked by the scan
+        return array;
+    }
 
-        for (long i = 0; i < elements; i++) {
-            tuple.add(decode());
+    private int scanNumericList(long numElements) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        boolean integers = false;
+        boolean longs = false;
+        boolean doubles = false;
+
+        for (long i = 0; i < numElements; i++) {
+            if (position >= limit) return NUMERIC_NONE;
+
+            switch (buffer.get(position)) {
+                case SMALL_INTEGER_EXT:
+                    integers = true;
+                    position += 2;
+                    break;
+                case INTEGER_EXT:
+                    integers = true;
+                    position += 5;
+                    break;
+                case NEW_FLOAT_EXT:
+                    doubles = true;
+                    position += 9;
+                    break;
+                case SMALL_BIG_EXT:
+                    if (position + 2 >= limit) return NUMERIC_NONE;
+                    int byteCount = buffer.get(position + 1) & 0xff;
+                    if (byteCount > 8 || position + 2 + byteCount >= limit) return NUMERIC_NONE;
+                    //the magnitude must fit in 63 bits
+                    if (byteCount == 8 && (buffer.get(position + 2 + byteCount) & 0x80) != 0) return NUMERIC_NONE;
+                    longs = true;
+                    position += 3 + byteCount;
+                    break;
+                default:
+                    return NUMERIC_NONE;
+            }
+
+            if (doubles && (integers || longs)) return NUMERIC_NONE;
         }
 
-        return tuple;
+        if (position >= limit || buffer.get(position) != NIL_EXT) return NUMERIC_NONE;
+
+        if (doubles) return NUMERIC_DOUBLE;
+        if (longs) return NUMERIC_LONG;
+        return NUMERIC_INT;
+    }
+
+    Object emptyList() {
+        return compactContainers ? BertList.EMPTY : new ArrayList<>();
     }
 
-    private Map<Object, Object> decodeMap() throws InvalidObjectException {
-        Map<Object, Object> map = new LinkedHashMap<>();
-        long elements = getUnsignedInt();
+    /**
+     * Builds the list of {@code count} elements starting at {@code from}, or a map when it is a
+     * proplist and {@link #setDecodePropListsAsMap(boolean)} is enabled.
+     */
+    Object newList(Object[] items, int from, int count) {
+        boolean canDecodeAsMap = propListsAsMap;
+
+        for (int i = from; canDecodeAsMap && i < from + count; i++) {
+            canDecodeAsMap = items[i] instanceof BertTuple && ((BertTuple) items[i]).isKV();
+        }
+
+        if (canDecodeAsMap) {
+            if (compactContainers) {
+                Object[] pairs = new Object[count * 2];
+                for (int i = 0; i < count; i++) {
+                    BertTuple tuple = (BertTuple) items[from + i];
+                    pairs[2 * i] = tuple.get(0);
+                    pairs[2 * i + 1] = tuple.get(1);
+                }
+                return BertMap.of(pairs, 0, count);
+            }
+
+            Map<Object, Object> map = new LinkedHashMap<>(mapCapacity(count));
+            for (int i = from; i < from + count; i++) {
+                BertTuple tuple = (BertTuple) items[i];
+                map.put(tuple.get(0), tuple.get(1));
+            }
+            return map;
+        }
+
+        if (compactContainers) {
+            return (count == 0) ? BertList.EMPTY : new BertList(Arrays.copyOfRange(items, from, from + count));
+        }
 
-        for (long i = 0; i < elements; i++) {
-            Object key = decode();
-            Object value = decode();
+        ArrayList<Object> list = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            list.add(items[i]);
+        }
+        return list;
+    }
 
-            if (key == null) continue;
+    BertTuple newTuple(Object[] items, int from, int count) {
+        BertTuple tuple = new BertTuple(count);
+        for (int i = from; i < from + count; i++) {
+            tuple.add(items[i]);
+        }
+        return tuple;
+    }
 
-            key = getMapKey(key);
-            value = getMapValue(key, value);
-            map.put(key, value);
+    /**
+     * Builds the map of the keys and values alternating from {@code from}; {@code items} is
+     * used as scratch space.
+     */
+    Map<Object, Object> newMap(Object[] items, int from, int count) {
+        if (compactContainers) {
+            int pairs = 0;
+            for (int i = from; i < from + count; i += 2) {
+                if (items[i] == null) continue;
+
+                Object key = getMapKey(items[i]);
+                items[from + 2 * pairs + 1] = getMapValue(key, items[i + 1]);
+                items[from + 2 * pairs] = key;
+                pairs++;
+            }
+            return BertMap.of(items, from, pairs);
         }
 
+        Map<Object, Object> map = new LinkedHashMap<>(mapCapacity(count / 2));
+        for (int i = from; i < from + count; i += 2) {
+            putMapEntry(map, items[i], items[i + 1]);
+        }
         return map;
     }
 
+    private static int mapCapacity(int entries) {
+        return (int) (entries / 0.75f) + 1;
+    }
+
+    private void putMapEntry(Map<Object, Object> map, Object key, Object value) {
+        if (key == null) return;
+
+        key = getMapKey(key);
+        value = getMapValue(key, value);
+        map.put(key, value);
+    }
+
     private Object getMapKey(Object key) {
         if (!mapKeysAsString) return key;
 
         if (key instanceof String) return key;
         if (key instanceof BertAtom) return ((BertAtom) key).get();
-        if (key instanceof byte[]) new String((byte[]) key, utf8Charset);
+        if (key instanceof byte[]) return TextCodec.decode((byte[]) key);
+        if (key instanceof ByteBuffer) return decodeString((ByteBuffer) key);
         return key.toString();
     }
 
@@ -282,15 +1048,18 @@ public final class BertDecoder extends Bert implements DistributionHeader {
         if (value == null) return null;
 
         if (shouldDecodeBinaryAsStringForKey(key)) {
-            if (value instanceof byte[]) return new String((byte[]) value, utf8Charset);
+            if (value instanceof byte[]) return TextCodec.decode((byte[]) value);
+            if (value instanceof ByteBuffer) return decodeString((ByteBuffer) value);
             if (value instanceof String) return value;
-            if (value instanceof ArrayList) {
+            if (value instanceof List) {
                 ArrayList<String> parsedList = new ArrayList<>();
-                ArrayList list = (ArrayList) value;
+                List<?> list = (List<?>) value;
                 for (Object obj : list) {
                     if (obj instanceof byte[]) {
-                        String parsed = new String((byte[]) obj, utf8Charset);
+                        String parsed = TextCodec.decode((byte[]) obj);
                         parsedList.add(parsed);
+                    } else if (obj instanceof ByteBuffer) {
+                        parsedList.add(decodeString((ByteBuffer) obj));
                     } else if (obj instanceof String) {
                         parsedList.add((String) obj);
                     } else {
@@ -305,10 +1074,96 @@ public final class BertDecoder extends Bert implements DistributionHeader {
         return value;
     }
 
-    private String decodeString(int byteCount) {
+    private String decodeString(int byteCount, Charset charset) throws InvalidObjectException {
+        require(byteCount);
         int position = buffer.position();
-        buffer.position(buffer.position() + byteCount);
-        return new String(buffer.array(), position, byteCount);
+        buffer.position(position + byteCount);
+        return text.decode(buffer, position, byteCount, charset);
+    }
+
+    private String decodeString(ByteBuffer binary) {
+        return text.decode(binary, binary.position(), binary.remaining(), TextCodec.UTF8);
+    }
+
+    void beginBudget() {
+        beginBudget(null);
+    }
+
+    /**
+     * @param shared budget of a term decoded by several decoders at once, or null for a term
+     *               decoded by this one only
+     */
+    void beginBudget(SharedBudget shared) {
+        allocated = 0;
+        elements = 0;
+        baseDepth = 0;
+        sharedBudget = shared;
+    }
+
+    /**
+     * Checks a container {@code depth} deep and charges its {@code children} to the element budget.
+     */
+    void checkNesting(int depth, long children) throws InvalidObjectException {
+        if (depth > maxDepth - baseDepth) {
+            throw new InvalidObjectException("Max depth " + maxDepth + " exceeded");
+        }
+
+        long total = (sharedBudget != null) ? sharedBudget.elements.addAndGet(children) : (elements += children);
+        if (total > maxElements) {
+            throw new InvalidObjectException("Max element count " + maxElements + " exceeded");
+        }
+    }
+
+    /**
+     * Throws unless {@code bytes} more fit the allocation budget, without charging them.
+     */
+    void checkAllocation(long bytes) throws InvalidObjectException {
+        long used = (sharedBudget != null) ? sharedBudget.allocated.get() : allocated;
+        if (bytes > maxAllocation - used) {
+            throw allocationExceeded();
+        }
+    }
+
+    private void reserve(long bytes) throws InvalidObjectException {
+        if (sharedBudget == null) {
+            checkAllocation(bytes);
+            allocated += bytes;
+            return;
+        }
+
+        //charged first, so decoders racing for the last bytes cannot both fit
+        if (sharedBudget.allocated.addAndGet(bytes) > maxAllocation) {
+            throw allocationExceeded();
+        }
+    }
+
+    private InvalidObjectException allocationExceeded() {
+        return new InvalidObjectException("Max allocation of " + maxAllocation + " bytes exceeded");
+    }
+
+    private void require(long bytes) throws InvalidObjectException {
+        if (bytes > buffer.remaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+    }
+
+    void beginTerm() {
+        if (termStats != null) termStats.begin();
+    }
+
+    void endTerm(int bytes) {
+        if (termStats == null) return;
+        termStats.end(bytes);
+        metricsListener.onDecoded(termStats);
+    }
+
+    /**
+     * Counts a tag the stream decoder handles itself, e.g. for COMPRESSED terms.
+     */
+    void countTag(byte tag, int depth) {
+        if (termStats == null) return;
+        termStats.tag(tag);
+        termStats.reachDepth(depth);
     }
 
     private short getUnsignedByte() {
@@ -322,4 +1177,28 @@ public final class BertDecoder extends Bert implements DistributionHeader {
     private long getUnsignedInt() {
         return ((long) buffer.getInt() & 0xffffffffL);
     }
+
+    /**
+     * Allocation and element counts of one term decoded in parts on several threads.
+     */
+    static final class SharedBudget {
+
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLong elements = new AtomicLong();
+    }
+
+    /**
+     * Receives the single term inflated from a COMPRESSED term.
+     */
+    static final class InflatedTerm implements BertStreamDecoder.Listener {
+
+        Object term;
+        boolean done;
+
+        @Override
+        public void onTerm(Object term) {
+            this.term = term;
+            done = true;
+        }
+    }
 }
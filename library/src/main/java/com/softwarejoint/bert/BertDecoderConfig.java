@@ -0,0 +1,311 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable decoder options, built once and shared by any number of threads:
+ * <pre>
+ * BertDecoderConfig config = new BertDecoderConfig.Builder()
+ *         .setDecodeAtomAsString(true)
+ *         .build();
+ * Object term = config.decodeAny(data);    //from any thread
+ * </pre>
+ * Each call borrows a {@link BertDecoder} holding the per call working state from an internal
+ * pool and returns it afterwards, so calls never contend on a lock. All decoders of a config
+ * intern atoms in one shared {@link AtomTable}.
+ * <p>
+ * Lazy decoding keeps a reference to its decoder, so it is only offered through a dedicated
+ * decoder from {@link #newDecoder()}; the same goes for an {@link AtomCacheSession}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertDecoderConfig {
+
+    private static final int MAX_POOLED_DECODERS = 64;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024;
+
+    private final boolean atomAsString;
+    private final boolean propListsAsMap;
+    private final boolean mapKeysAsString;
+    private final boolean shortOrByteAsInt;
+    private final boolean binaryAsSlice;
+    private final boolean numericListsAsArrays;
+    private final boolean compactContainers;
+    private final AtomTable atomTable;
+    private final Object[] binaryAsStringKeys;
+    private final BertTypeRegistry typeRegistry;
+    private final BertMetricsListener metricsListener;
+    private final int maxDepth;
+    private final long maxAllocation;
+    private final long maxElements;
+    private final ParallelDecoder parallelDecoder;
+
+    private final ConcurrentLinkedQueue<BertDecoder> decoders = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private BertDecoderConfig(Builder builder) {
+        atomAsString = builder.atomAsString;
+        propListsAsMap = builder.propListsAsMap;
+        mapKeysAsString = builder.mapKeysAsString;
+        shortOrByteAsInt = builder.shortOrByteAsInt;
+        binaryAsSlice = builder.binaryAsSlice;
+        numericListsAsArrays = builder.numericListsAsArrays;
+        compactContainers = builder.compactContainers;
+        atomTable = builder.atomTableSet ? builder.atomTable : new AtomTable();
+        binaryAsStringKeys = builder.binaryAsStringKeys.toArray();
+        typeRegistry = builder.typeRegistry;
+        metricsListener = builder.metricsListener;
+        maxDepth = builder.maxDepth;
+        maxAllocation = builder.maxAllocation;
+        maxElements = builder.maxElements;
+        parallelDecoder = (builder.parallelExecutor == null) ? null : new ParallelDecoder(this,
+                builder.parallelExecutor, builder.parallelThreshold, numericListsAsArrays, typeRegistry);
+    }
+
+    /**
+     * A new decoder with these options, owned by the caller.
+     */
+    public BertDecoder newDecoder() {
+        BertDecoder decoder = new BertDecoder()
+                .setDecodeAtomAsString(atomAsString)
+                .setDecodePropListsAsMap(propListsAsMap)
+                .setDecodeMapKeysAsString(mapKeysAsString)
+                .setDecodeShortOrByteAsInt(shortOrByteAsInt)
+                .setDecodeBinaryAsSlice(binaryAsSlice)
+                .setDecodeNumericListsAsArrays(numericListsAsArrays)
+                .setDecodeCompactContainers(compactContainers)
+                .setAtomTable(atomTable)
+                .setTypeRegistry(typeRegistry)
+                .setMetricsListener(metricsListener)
+                .setMaxDepth(maxDepth)
+                .setMaxAllocation(maxAllocation)
+                .setMaxElements(maxElements);
+
+        for (Object key : binaryAsStringKeys) {
+            decoder.addBinaryValuesAsStringForKey(key);
+        }
+        return decoder;
+    }
+
+    public Object decodeAny(byte[] data) throws InvalidObjectException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @see BertDecoder#decode(ByteBuffer)
+     * @see Builder#setParallelExecutor(Executor)
+     */
+    public Object decode(ByteBuffer data) throws InvalidObjectException {
+        if (parallelDecoder != null) return parallelDecoder.decode(data);
+
+        BertDecoder decoder = acquire();
+        try {
+            return decoder.decode(data);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    public <T> T decodeAny(byte[] data, BertCodec<T> codec) throws InvalidObjectException {
+        return decode(ByteBuffer.wrap(data), codec);
+    }
+
+    public <T> T decode(ByteBuffer data, BertCodec<T> codec) throws InvalidObjectException {
+        BertDecoder decoder = acquire();
+        try {
+            return decoder.decode(data, codec);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * @see BertDecoder#extract(ByteBuffer, BertPath)
+     */
+    public Object extract(ByteBuffer data, BertPath path) throws InvalidObjectException {
+        BertDecoder decoder = acquire();
+        try {
+            return decoder.extract(data, path);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    BertDecoder acquire() {
+        BertDecoder decoder = decoders.poll();
+        if (decoder == null) return newDecoder();
+
+        pooled.decrementAndGet();
+        return decoder;
+    }
+
+    void release(BertDecoder decoder) {
+        if (pooled.incrementAndGet() > MAX_POOLED_DECODERS) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        decoders.offer(decoder);
+    }
+
+    public static final class Builder {
+
+        private boolean atomAsString;
+        private boolean propListsAsMap;
+        private boolean mapKeysAsString;
+        private boolean shortOrByteAsInt;
+        private boolean binaryAsSlice;
+        private boolean numericListsAsArrays;
+        private boolean compactContainers;
+        private AtomTable atomTable;
+        private boolean atomTableSet;
+        private final ArrayList<Object> binaryAsStringKeys = new ArrayList<>();
+        private BertTypeRegistry typeRegistry;
+        private BertMetricsListener metricsListener;
+        private int maxDepth = Integer.MAX_VALUE;
+        private long maxAllocation = Long.MAX_VALUE;
+        private long maxElements = Long.MAX_VALUE;
+        private Executor parallelExecutor;
+        private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+        public Builder setDecodeAtomAsString(boolean enabled) {
+            atomAsString = enabled;
+            return this;
+        }
+
+        public Builder setDecodePropListsAsMap(boolean enabled) {
+            propListsAsMap = enabled;
+            return this;
+        }
+
+        public Builder setDecodeMapKeysAsString(boolean enabled) {
+            mapKeysAsString = enabled;
+            return this;
+        }
+
+        public Builder setDecodeShortOrByteAsInt(boolean enabled) {
+            shortOrByteAsInt = enabled;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setDecodeBinaryAsSlice(boolean)
+         */
+        public Builder setDecodeBinaryAsSlice(boolean enabled) {
+            binaryAsSlice = enabled;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setDecodeNumericListsAsArrays(boolean)
+         */
+        public Builder setDecodeNumericListsAsArrays(boolean enabled) {
+            numericListsAsArrays = enabled;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setDecodeCompactContainers(boolean)
+         */
+        public Builder setDecodeCompactContainers(boolean enabled) {
+            compactContainers = enabled;
+            return this;
+        }
+
+        /**
+         * Table shared by all decoders of the config; a new one is created when not set and
+         * null disables interning.
+         */
+        public Builder setAtomTable(AtomTable table) {
+            atomTable = table;
+            atomTableSet = true;
+            return this;
+        }
+
+        public Builder addBinaryValuesAsStringForKey(Object key) {
+            binaryAsStringKeys.add(key);
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setTypeRegistry(BertTypeRegistry)
+         */
+        public Builder setTypeRegistry(BertTypeRegistry registry) {
+            typeRegistry = registry;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setMaxDepth(int)
+         */
+        public Builder setMaxDepth(int depth) {
+            if (depth < 0) {
+                throw new IllegalArgumentException("Invalid max depth " + depth);
+            }
+            maxDepth = depth;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setMaxAllocation(long)
+         */
+        public Builder setMaxAllocation(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Invalid max allocation " + bytes);
+            }
+            maxAllocation = bytes;
+            return this;
+        }
+
+        /**
+         * @see BertDecoder#setMaxElements(long)
+         */
+        public Builder setMaxElements(long count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("Invalid max elements " + count);
+            }
+            maxElements = count;
+            return this;
+        }
+
+        /**
+         * Decode large terms on {@code executor}: lists, maps and tuples of at least
+         * {@link #setParallelThreshold(int)} bytes are cut into ranges decoded in parallel and
+         * joined in their original order. Null, the default, decodes on the calling thread.
+         */
+        public Builder setParallelExecutor(Executor executor) {
+            parallelExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Size in bytes from which a container is split, and the size of the ranges it is cut
+         * into; 1 MB by default.
+         */
+        public Builder setParallelThreshold(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Invalid parallel threshold " + bytes);
+            }
+            parallelThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * Shared by all decoders of the config, so it must be thread safe like {@link BertMetrics}.
+         *
+         * @see BertDecoder#setMetricsListener(BertMetricsListener)
+         */
+        public Builder setMetricsListener(BertMetricsListener listener) {
+            metricsListener = listener;
+            return this;
+        }
+
+        public BertDecoderConfig build() {
+            return new BertDecoderConfig(this);
+        }
+    }
+}
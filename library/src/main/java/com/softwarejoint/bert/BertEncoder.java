@@ -1,20 +1,54 @@
 package com.softwarejoint.bert;
 
-import android.annotation.SuppressLint;
-
 import java.lang.reflect.Array;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 
+/**
+ * Holds per call working state and is not thread safe; share a {@link BertEncoderConfig} instead.
+ */
 @SuppressWarnings("unused")
 public final class BertEncoder extends Bert implements DistributionHeader {
 
-    private ByteBuffer buffer;
+    private BertOutput output;
+    private BertOutput fixedOutput;
+    private BertOutput pooledOutput;
+    private BufferPool bufferPool;
+
+    private int compressionThreshold = -1;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Deflater deflater;
+    private byte[] deflateBuffer;
+    private BertOutput deflatedOutput;
+
+    private AtomCacheSession atomCache;
+    private BertOutput bodyOutput;
+    private final int[] slotStamps = new int[ATOM_CACHE_SIZE];
+    private final int[] slotRefs = new int[ATOM_CACHE_SIZE];
+    private final int[] refSlots = new int[ATOM_CACHE_MAX_REFS];
+    private final String[] refAtoms = new String[ATOM_CACHE_MAX_REFS];
+    private final boolean[] refIsNew = new boolean[ATOM_CACHE_MAX_REFS];
+    private int refCount;
+    private int stamp;
+
+    private BertMetricsListener metricsListener;
+    private BertTermStats termStats;
+
+    private BertTypeRegistry typeRegistry = BertTypeRegistry.shared();
+    private Class<?> lastType;
+    private BertTypeRegistry.Handler lastHandler;
 
-    private int MIN_BUFFER_SIZE = 1024 * 8;  //8kb default size
-    private int bufferSize = MIN_BUFFER_SIZE;
+    //while encodeAny sizes a term a codec value ends the sizing, measuring it would encode it twice
+    private boolean sizingForEncode;
+    private boolean codecFound;
 
     private boolean stringAsBinary;
     private boolean mapKeysAsAtom;
@@ -41,171 +75,843 @@ public final class BertEncoder extends Bert implements DistributionHeader {
         return this;
     }
 
+    /**
+     * No effect: {@link #encodeAny(Object)} allocates the exact size, and stages atom cache and
+     * compressed terms in pooled chunks, so there is no fixed buffer left to size.
+     */
+    @Deprecated
     public BertEncoder setBufferSize(int bufferSize) {
-        this.bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
         return this;
     }
 
-    private void resetBuffer() {
-        if (buffer != null) buffer.clear();
-        int size = Math.max(bufferSize, MIN_BUFFER_SIZE);
-        if (buffer == null || buffer.capacity() < size) {
-            buffer = ByteBuffer.allocate(bufferSize);
+    /**
+     * Encode into chunks borrowed from {@code pool} which grow on demand, instead of an array
+     * of the exact size. Pass null to disable.
+     */
+    public BertEncoder setBufferPool(BufferPool pool) {
+        if (pool != bufferPool) pooledOutput = null;
+        bufferPool = pool;
+        return this;
+    }
+
+    /**
+     * Prefix every term with a distribution header and send its atoms as ATOM_CACHE_REF
+     * through the per connection {@code session}. Pass null to encode plain terms.
+     */
+    public BertEncoder setAtomCacheSession(AtomCacheSession session) {
+        atomCache = session;
+        return this;
+    }
+
+    /**
+     * Emit COMPRESSED terms once the uncompressed term reaches {@code bytes}, like
+     * term_to_binary(T, [compressed]). Terms deflate does not shrink stay uncompressed. Negative
+     * disables compression, which is the default. Not applied together with an atom cache session.
+     */
+    public BertEncoder setCompressionThreshold(int bytes) {
+        compressionThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * Deflate level from 0 to 9, see {@link Deflater}.
+     */
+    public BertEncoder setCompressionLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
         }
+        compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * Registry resolving how each class is encoded, {@link BertTypeRegistry#shared()} by default.
+     */
+    public BertEncoder setTypeRegistry(BertTypeRegistry registry) {
+        typeRegistry = (registry != null) ? registry : BertTypeRegistry.shared();
+        lastType = null;
+        lastHandler = null;
+        return this;
+    }
+
+    /**
+     * Report the size, time, tags and depth of every term to {@code listener}; null disables.
+     */
+    public BertEncoder setMetricsListener(BertMetricsListener listener) {
+        metricsListener = listener;
+        termStats = (listener != null) ? new BertTermStats() : null;
+        return this;
+    }
+
+    private BertOutput pooledOutput() {
+        if (pooledOutput == null) {
+            BufferPool pool = (bufferPool != null) ? bufferPool : BufferPool.shared();
+            pooledOutput = new BertOutput(pool);
+        }
+        return pooledOutput;
+    }
+
+    private BertOutput fixedOutput(ByteBuffer destination) {
+        if (fixedOutput == null) fixedOutput = new BertOutput(destination);
+        else fixedOutput.wrap(destination);
+        return fixedOutput;
     }
 
     public byte[] encodeAny(Object any) {
-        resetBuffer();
-        buffer.put(MAGIC);
-        encode(any);
-        byte[] encodedData = new byte[buffer.position()];
-        buffer.flip();
-        buffer.get(encodedData);
-        return encodedData;
+        return encodeAny(any, null);
+    }
+
+    /**
+     * Encodes {@code value} with a generated or hand written {@code codec}.
+     */
+    public <T> byte[] encodeAny(T value, BertCodec<T> codec) {
+        if (codec == null && bufferPool == null && atomCache == null && compressionThreshold < 0) {
+            //sized up front, so the term is written once into an array of the exact length
+            int size = sizeForEncode(value);
+            if (size >= 0) {
+                byte[] data = new byte[size];
+                encodeTo(value, ByteBuffer.wrap(data));
+                return data;
+            }
+        }
+
+        //codec values, atom cache and compressed terms are staged, their size is only known once written
+        output = pooledOutput();
+        try {
+            encodeTerm(value, untyped(codec));
+            return output.toByteArray();
+        } finally {
+            output.reset();
+        }
+    }
+
+    /**
+     * Encodes straight into {@code destination} starting at its position.
+     *
+     * @return number of bytes written
+     * @throws java.nio.BufferOverflowException if the term does not fit
+     */
+    public int encodeTo(Object any, ByteBuffer destination) {
+        return encodeTo(any, null, destination);
+    }
+
+    public <T> int encodeTo(T value, BertCodec<T> codec, ByteBuffer destination) {
+        output = fixedOutput(destination);
+        encodeTerm(value, untyped(codec));
+        return output.size();
+    }
+
+    /**
+     * Encodes into pooled chunks and writes them to {@code out} without building a byte[].
+     *
+     * @return number of bytes written
+     */
+    public int encodeTo(Object any, OutputStream out) throws IOException {
+        return encodeTo(any, null, out);
+    }
+
+    public <T> int encodeTo(T value, BertCodec<T> codec, OutputStream out) throws IOException {
+        output = pooledOutput();
+        try {
+            encodeTerm(value, untyped(codec));
+            output.writeTo(out);
+            return output.size();
+        } finally {
+            output.reset();
+        }
+    }
+
+    /**
+     * Encodes {@code terms} back to back into pooled chunks, each prefixed with its length as a
+     * 4 byte big-endian int like {packet,4}, and hands all chunks to {@code channel} in one
+     * gathering write. A partial write is retried until everything is written.
+     *
+     * @return number of bytes written
+     * @throws IllegalBlockingModeException if the channel is in non-blocking mode, where the
+     * retries would spin
+     */
+    public long encodeBatch(Iterable<?> terms, GatheringByteChannel channel) throws IOException {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+
+        output = pooledOutput();
+        try {
+            encodeBatch(terms);
+
+            ByteBuffer[] buffers = output.toBuffers();
+            long size = output.size();
+            long written = 0;
+            while (written < size) {
+                written += channel.write(buffers);
+            }
+            return written;
+        } finally {
+            output.reset();
+        }
+    }
+
+    /**
+     * Appends {@code terms} to {@code out} with the framing of
+     * {@link #encodeBatch(Iterable, GatheringByteChannel)}, e.g. to collect several batches
+     * before flushing {@link BertOutput#toBuffers()}.
+     */
+    public void encodeBatch(Iterable<?> terms, BertOutput out) {
+        BertOutput previous = output;
+        output = out;
+        try {
+            encodeBatch(terms);
+        } finally {
+            output = previous;
+        }
+    }
+
+    private void encodeBatch(Iterable<?> terms) {
+        for (Object term : terms) {
+            //the length is patched in once the term is written
+            int offset = output.size();
+            output.putInt(0);
+            encodeTerm(term, null);
+            output.putInt(offset, output.size() - offset - 4);
+        }
+    }
+
+    /**
+     * Exact number of bytes {@link #encodeAny(Object)} produces for {@code any}, computed
+     * without writing it, e.g. for a {packet,4} length prefix:
+     * <pre>
+     * destination.putInt(encoder.sizeOf(term));
+     * encoder.encodeTo(term, destination);
+     * </pre>
+     * Values handled by a {@link BertCodec} are measured by encoding them into a scratch output.
+     *
+     * @throws IllegalStateException with an atom cache session or compression, as their size
+     * is only known after encoding
+     */
+    public int sizeOf(Object any) {
+        return sizeOf(any, null);
+    }
+
+    /**
+     * Exact number of bytes {@link #encodeAny(Object, BertCodec)} produces for {@code value}.
+     *
+     * @see #sizeOf(Object)
+     */
+    public <T> int sizeOf(T value, BertCodec<T> codec) {
+        if (atomCache != null || compressionThreshold >= 0) {
+            throw new IllegalStateException("Size is unknown before encoding with atom cache or compression");
+        }
+
+        lastType = null;
+        return arraySize(1 + ((codec != null) ? sizeOfCodec(value, untyped(codec)) : sizeOfValue(value)));
+    }
+
+    /**
+     * Size of {@code any} for {@link #encodeAny(Object)}, or -1 when it holds a codec value.
+     */
+    private int sizeForEncode(Object any) {
+        sizingForEncode = true;
+        codecFound = false;
+        try {
+            lastType = null;
+            long size = 1 + sizeOfValue(any);
+            return codecFound ? -1 : arraySize(size);
+        } finally {
+            sizingForEncode = false;
+        }
+    }
+
+    private static int arraySize(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Term of " + size + " bytes exceeds the max array size");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Appends {@code any} to {@code out} without MAGIC, honouring the options of this encoder.
+     * Used by codecs for members they do not encode themselves.
+     */
+    public void encodeValue(Object any, BertOutput out) {
+        BertOutput previous = output;
+        output = out;
+        lastType = null;
+        try {
+            encode(any);
+        } finally {
+            output = previous;
+        }
+    }
+
+    /**
+     * A codec of T only ever receives the T passed next to it to a public entry point.
+     */
+    @SuppressWarnings("unchecked")
+    private static BertCodec<Object> untyped(BertCodec<?> codec) {
+        return (BertCodec<Object>) codec;
+    }
+
+    private void encodeBody(Object any, BertCodec<Object> codec) {
+        //picks up codecs registered since the last term
+        lastType = null;
+        if (codec != null) codec.encode(any, output, this);
+        else encode(any);
+    }
+
+    private void encodeTerm(Object any, BertCodec<Object> codec) {
+        if (termStats == null) {
+            encodeFramed(any, codec);
+            return;
+        }
+
+        int start = output.size();
+        termStats.begin();
+        encodeFramed(any, codec);
+        termStats.end(output.size() - start);
+        metricsListener.onEncoded(termStats);
+    }
+
+    private void encodeFramed(Object any, BertCodec<Object> codec) {
+        if (atomCache != null) {
+            encodeWithAtomCache(any, codec);
+        } else if (compressionThreshold >= 0) {
+            encodeCompressible(any, codec);
+        } else {
+            output.put(MAGIC);
+            encodeBody(any, codec);
+        }
+    }
+
+    private BertOutput bodyOutput() {
+        if (bodyOutput == null) bodyOutput = new BertOutput(BufferPool.shared());
+        return bodyOutput;
+    }
+
+    private void encodeWithAtomCache(Object any, BertCodec<Object> codec) {
+        //atoms are only known after the body is written, so it is staged and appended after the header
+        BertOutput target = output;
+        output = bodyOutput();
+        refCount = 0;
+        if (++stamp == 0) stamp = 1;
+
+        try {
+            encodeBody(any, codec);
+
+            target.put(MAGIC);
+            encodeDistributionHeader(target);
+            bodyOutput.writeTo(target);
+
+            for (int i = 0; i < refCount; i++) {
+                if (refIsNew[i]) atomCache.cacheOutgoing(refSlots[i], refAtoms[i]);
+            }
+        } finally {
+            bodyOutput.reset();
+            output = target;
+        }
+    }
+
+    private void encodeCompressible(Object any, BertCodec<Object> codec) {
+        BertOutput target = output;
+        output = bodyOutput();
+
+        try {
+            encodeBody(any, codec);
+
+            int size = bodyOutput.size();
+            target.put(MAGIC);
+
+            //like term_to_binary the plain term is kept when deflating does not make it smaller
+            if (size >= compressionThreshold && deflate(bodyOutput, deflatedOutput(), size - 5)) {
+                target.put(COMPRESSED);
+                putUnsignedInt(target, size);
+                deflatedOutput.writeTo(target);
+            } else {
+                bodyOutput.writeTo(target);
+            }
+        } finally {
+            bodyOutput.reset();
+            if (deflatedOutput != null) deflatedOutput.reset();
+            output = target;
+        }
+    }
+
+    private BertOutput deflatedOutput() {
+        if (deflatedOutput == null) deflatedOutput = new BertOutput(BufferPool.shared());
+        return deflatedOutput;
+    }
+
+    /**
+     * Deflates {@code body} into {@code target}, giving up once it reaches {@code limit} bytes.
+     *
+     * @return whether the compressed data stayed below {@code limit}
+     */
+    private boolean deflate(BertOutput body, BertOutput target, int limit) {
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel);
+            deflateBuffer = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+        } else {
+            deflater.reset();
+            deflater.setLevel(compressionLevel);
+        }
+
+        ByteBuffer[] chunks = body.toBuffers();
+        for (ByteBuffer chunk : chunks) {
+            deflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            while (!deflater.needsInput()) {
+                int count = deflater.deflate(deflateBuffer);
+                target.put(deflateBuffer, 0, count);
+                if (target.size() >= limit) return false;
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(deflateBuffer);
+            target.put(deflateBuffer, 0, count);
+            if (target.size() >= limit) return false;
+        }
+        return true;
+    }
+
+    private void encodeDistributionHeader(BertOutput target) {
+        target.put(DIST_HEADER);
+        target.put((byte) refCount);
+        if (refCount == 0) return;
+
+        byte[][] texts = new byte[refCount][];
+        boolean longAtoms = false;
+        for (int i = 0; i < refCount; i++) {
+            if (!refIsNew[i]) continue;
+            texts[i] = refAtoms[i].getBytes(utf8Charset);
+            longAtoms = longAtoms || texts[i].length > SMALL_INTEGER_EXT_MAX_VAL;
+        }
+
+        int flags = 0;
+        for (int i = 0; i <= refCount; i++) {
+            int nibble;
+            if (i == refCount) nibble = longAtoms ? 1 : 0;
+            else nibble = (refIsNew[i] ? 8 : 0) | ((refSlots[i] >>> 8) & 7);
+
+            if ((i & 1) == 0) {
+                flags = nibble;
+            } else {
+                target.put((byte) (flags | (nibble << 4)));
+            }
+        }
+        if ((refCount & 1) == 0) target.put((byte) flags);
+
+        for (int i = 0; i < refCount; i++) {
+            target.put((byte) (refSlots[i] & 0xff));
+            if (!refIsNew[i]) continue;
+
+            if (longAtoms) {
+                putUnsignedShort(target, texts[i].length);
+            } else {
+                target.put((byte) texts[i].length);
+            }
+            target.put(texts[i]);
+        }
+    }
+
+    /**
+     * @return false when the atom has to be written inline instead
+     */
+    private boolean encodeAtomCacheRef(String atom) {
+        int slot = AtomCacheSession.slotFor(atom);
+        int ref;
+
+        if (slotStamps[slot] == stamp) {
+            ref = slotRefs[slot];
+            if (!atom.equals(refAtoms[ref])) return false;
+        } else {
+            if (refCount == ATOM_CACHE_MAX_REFS) return false;
+
+            ref = refCount++;
+            slotStamps[slot] = stamp;
+            slotRefs[slot] = ref;
+            refSlots[ref] = slot;
+            refAtoms[ref] = atom;
+            refIsNew[ref] = !atomCache.isCached(slot, atom);
+        }
+
+        putTag(ATOM_CACHE_REF);
+        putUnsignedByte(ref);
+        return true;
     }
 
     @SuppressWarnings("unchecked")
     private void encode(Object any) {
         if (any == null) {
             encodeNull();
-        } else if (any instanceof Byte) {
-            encodeByte((Byte) any);
-        } else if (any instanceof Short) {
-            encodeInteger(((Short) any).intValue());
-        } else if (any instanceof Integer) {
-            encodeInteger((Integer) any);
-        } else if (any instanceof Float) {
-            encodeDouble(((Float) any).doubleValue());
-        } else if (any instanceof Double) {
-            encodeDouble((Double) any);
-        } else if (any instanceof Long) {
-            encodeLong((Long) any);
-        } else if (any instanceof BigInteger) {
-            encodeBigInteger((BigInteger) any);
-        } else if (any instanceof Boolean) {
-            encodeAtom((Boolean) any);
-        } else if (any instanceof BertAtom) {
-            encodeAtom((BertAtom) any);
-        } else if (any instanceof String) {
-            encodeString((String) any);
-        } else if (any instanceof byte[]) {
-            encodeBinary((byte[]) any);
-        } else if (any instanceof BertTuple) {
-            encodeTuple((BertTuple) any);
-        } else if (any instanceof List) {
-            encodeList((List) any);
-        } else if (any instanceof Map) {
-            encodeMap((Map) any);
-        } else if (any.getClass().isArray()) {
-            encodeArray(any);
-        }
-    }
-
-    private void encodeByte(Byte i) {
-        buffer.put(SMALL_INTEGER_EXT);
-        putUnsignedByte(i);
-    }
-
-    private void encodeInteger(Integer i) {
+            return;
+        }
+
+        BertTypeRegistry.Handler handler = handlerFor(any.getClass());
+
+        switch (handler.kind) {
+            case BertTypeRegistry.BYTE:
+                encodeInteger((Byte) any);
+                break;
+            case BertTypeRegistry.SHORT:
+                encodeInteger(((Short) any).intValue());
+                break;
+            case BertTypeRegistry.INTEGER:
+                encodeInteger((Integer) any);
+                break;
+            case BertTypeRegistry.FLOAT:
+                encodeDouble(((Float) any).doubleValue());
+                break;
+            case BertTypeRegistry.DOUBLE:
+                encodeDouble((Double) any);
+                break;
+            case BertTypeRegistry.LONG:
+                encodeLong((Long) any);
+                break;
+            case BertTypeRegistry.BIG_INTEGER:
+                encodeBigInteger((BigInteger) any);
+                break;
+            case BertTypeRegistry.BOOLEAN:
+                encodeAtom((Boolean) any);
+                break;
+            case BertTypeRegistry.ATOM:
+                encodeAtom((BertAtom) any);
+                break;
+            case BertTypeRegistry.STRING:
+                encodeString((String) any);
+                break;
+            case BertTypeRegistry.BINARY:
+                encodeBinary((byte[]) any);
+                break;
+            case BertTypeRegistry.BYTE_BUFFER:
+                encodeBinary((ByteBuffer) any);
+                break;
+            case BertTypeRegistry.TUPLE:
+                enter();
+                encodeTuple((BertTuple) any);
+                leave();
+                break;
+            case BertTypeRegistry.LIST:
+                enter();
+                encodeList((List<?>) any);
+                leave();
+                break;
+            case BertTypeRegistry.MAP:
+                enter();
+                encodeMap((Map) any);
+                leave();
+                break;
+            case BertTypeRegistry.ARRAY:
+                enter();
+                encodeArray(any);
+                leave();
+                break;
+            case BertTypeRegistry.PRE_ENCODED:
+                ((PreEncodedTerm) any).writeTo(output);
+                break;
+            case BertTypeRegistry.CODEC:
+                handler.codec.encode(any, output, this);
+                break;
+            default:
+                throw unsupported(any);
+        }
+    }
+
+    private BertTypeRegistry.Handler handlerFor(Class<?> type) {
+        if (type != lastType) {
+            lastHandler = typeRegistry.handlerFor(type);
+            lastType = type;
+        }
+        return lastHandler;
+    }
+
+    private static IllegalArgumentException unsupported(Object any) {
+        return new IllegalArgumentException("Cannot encode " + any.getClass().getName()
+                + ", register a BertCodec for it in the BertTypeRegistry");
+    }
+
+    //sizeOf mirrors encode: every writer below has a counterpart here
+
+    @SuppressWarnings("unchecked")
+    private long sizeOfValue(Object any) {
+        if (any == null) return 1;
+
+        BertTypeRegistry.Handler handler = handlerFor(any.getClass());
+
+        switch (handler.kind) {
+            case BertTypeRegistry.BYTE:
+                return sizeOfInteger((Byte) any);
+            case BertTypeRegistry.SHORT:
+                return sizeOfInteger((Short) any);
+            case BertTypeRegistry.INTEGER:
+                return sizeOfInteger((Integer) any);
+            case BertTypeRegistry.FLOAT:
+            case BertTypeRegistry.DOUBLE:
+                return sizeOfDouble();
+            case BertTypeRegistry.LONG:
+                return NumberCodec.sizeOfLong((Long) any);
+            case BertTypeRegistry.BIG_INTEGER:
+                return NumberCodec.sizeOfBig((BigInteger) any);
+            case BertTypeRegistry.BOOLEAN:
+                return ((Boolean) any ? BertAtom.TRUE : BertAtom.FALSE).encoded().length;
+            case BertTypeRegistry.ATOM:
+                return ((BertAtom) any).encoded().length;
+            case BertTypeRegistry.STRING:
+                return sizeOfString((String) any);
+            case BertTypeRegistry.BINARY:
+                return 5 + ((byte[]) any).length;
+            case BertTypeRegistry.BYTE_BUFFER:
+                return 5 + ((ByteBuffer) any).remaining();
+            case BertTypeRegistry.TUPLE:
+                return sizeOfTuple((BertTuple) any);
+            case BertTypeRegistry.LIST:
+                return sizeOfList((List<?>) any);
+            case BertTypeRegistry.MAP:
+                return sizeOfMap((Map) any);
+            case BertTypeRegistry.ARRAY:
+                return sizeOfArray(any);
+            case BertTypeRegistry.PRE_ENCODED:
+                return ((PreEncodedTerm) any).size();
+            case BertTypeRegistry.CODEC:
+                if (!sizingForEncode) return sizeOfCodec(any, handler.codec);
+                codecFound = true;
+                return 0;
+            default:
+                throw unsupported(any);
+        }
+    }
+
+    private static int sizeOfInteger(int i) {
+        return (SMALL_INTEGER_EXT_MIN_VAL <= i && i <= SMALL_INTEGER_EXT_MAX_VAL) ? 2 : 5;
+    }
+
+    private int sizeOfDouble() {
+        return (minorVersion == ExternalFormat.OLD) ? 1 + FLOAT_LENGTH : 9;
+    }
+
+    private static long sizeOfAtom(String s) {
+        int length = TextCodec.utf8Length(s);
+        return ((length <= SMALL_INTEGER_EXT_MAX_VAL) ? 2 : 3) + length;
+    }
+
+    private long sizeOfString(String s) {
+        if (stringAsBinary) return 5 + TextCodec.utf8Length(s);
+        if (s.length() <= STRING_EXT_MAX_VAL && TextCodec.isLatin1(s)) return 3 + s.length();
+
+        long size = 6;
+        for (int i = 0; i < s.length(); ) {
+            int codePoint = TextCodec.codePointAt(s, i);
+            size += sizeOfInteger(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return size;
+    }
+
+    private long sizeOfTuple(BertTuple tuple) {
+        long size = (tuple.size() <= SMALL_INTEGER_EXT_MAX_VAL) ? 2 : 5;
+        for (Object o : tuple) {
+            size += sizeOfValue(o);
+        }
+        return size;
+    }
+
+    private long sizeOfList(List<?> list) {
+        long size = 6;
+        for (Object o : list) {
+            size += sizeOfValue(o);
+        }
+        return size;
+    }
+
+    private long sizeOfMap(Map<Object, Object> map) {
+        long size = mapAsPropList ? 6 + 2L * map.size() : 5;
+
+        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+            if (mapKeysAsAtom) {
+                size += sizeOfAtom(entry.getKey().toString());
+            } else if (mapKeysAsString) {
+                size += sizeOfString(entry.getKey().toString());
+            } else {
+                size += sizeOfValue(entry.getKey());
+            }
+
+            size += sizeOfValue(entry.getValue());
+        }
+        return size;
+    }
+
+    private long sizeOfArray(Object array) {
+        long size = 6;
+
+        if (array instanceof int[]) {
+            for (int i : (int[]) array) size += sizeOfInteger(i);
+        } else if (array instanceof long[]) {
+            for (long l : (long[]) array) size += NumberCodec.sizeOfLong(l);
+        } else if (array instanceof double[]) {
+            size += (long) ((double[]) array).length * sizeOfDouble();
+        } else if (array instanceof float[]) {
+            size += (long) ((float[]) array).length * sizeOfDouble();
+        } else if (array instanceof short[]) {
+            for (short s : (short[]) array) size += sizeOfInteger(s);
+        } else {
+            int elements = Array.getLength(array);
+            for (int i = 0; i < elements; i++) {
+                size += sizeOfValue(Array.get(array, i));
+            }
+        }
+        return size;
+    }
+
+    private long sizeOfCodec(Object any, BertCodec<Object> codec) {
+        BertOutput previous = output;
+        output = bodyOutput();
+        try {
+            codec.encode(any, output, this);
+            return output.size();
+        } finally {
+            output.reset();
+            output = previous;
+        }
+    }
+
+    private void encodeInteger(int i) {
         if (SMALL_INTEGER_EXT_MIN_VAL <= i && i <= SMALL_INTEGER_EXT_MAX_VAL) {
-            encodeByte(i.byteValue());
+            putTag(SMALL_INTEGER_EXT);
+            putUnsignedByte(i);
         } else {
-            buffer.put(INTEGER_EXT);
-            buffer.putInt(i);
+            putTag(INTEGER_EXT);
+            output.putInt(i);
         }
     }
 
-    private void encodeDouble(Double d) {
+    private void encodeDouble(double d) {
         switch (minorVersion) {
             case ExternalFormat.OLD:
-                buffer.put(FLOAT_EXT);
-                //noinspection MalformedFormatString
-                @SuppressLint("DefaultLocale")
-                String s = String.format("%0$-31.20e", d).replace(' ', '\0');
-                buffer.put(s.getBytes(utf8Charset));
+                putTag(FLOAT_EXT);
+                NumberCodec.putOldFloat(output, d);
                 break;
             case ExternalFormat.NEW:
-                buffer.put(NEW_FLOAT_EXT);
-                buffer.putDouble(d);
+                putTag(NEW_FLOAT_EXT);
+                output.putDouble(d);
                 break;
         }
     }
 
-    private void encodeLong(Long l) {
+    private void encodeLong(long l) {
         if (Integer.MIN_VALUE <= l && l <= Integer.MAX_VALUE) {
-            encodeInteger(l.intValue());
+            encodeInteger((int) l);
             return;
         }
 
-        encodeBigInteger(BigInteger.valueOf(l));
+        putTag(SMALL_BIG_EXT);
+        NumberCodec.putLong(output, l);
     }
 
     private void encodeBigInteger(BigInteger b) {
-        byte[] bytes = b.toByteArray();
+        if (b.bitLength() < 64) {
+            encodeLong(b.longValue());
+            return;
+        }
 
-        if (bytes.length <= SMALL_INTEGER_EXT_MAX_VAL) {
-            buffer.put(SMALL_BIG_EXT);
-            putUnsignedByte(bytes.length);
+        int byteCount = NumberCodec.byteCount(b);
+        if (byteCount <= SMALL_INTEGER_EXT_MAX_VAL) {
+            putTag(SMALL_BIG_EXT);
+            putUnsignedByte(byteCount);
         } else {
-            buffer.put(LARGE_BIG_EXT);
-            putUnsignedInt(bytes.length);
+            putTag(LARGE_BIG_EXT);
+            putUnsignedInt(byteCount);
         }
 
-        buffer.put((byte) ((b.signum() >= 0) ? 0 : 1));
-        for (int i = bytes.length; i > 0; i--) {
-            buffer.put(bytes[i - 1]);
-        }
+        NumberCodec.putBig(output, b, byteCount);
     }
 
     private void encodeAtom(Boolean b) {
-        encodeAtom(b.toString());
+        encodeAtom(b ? BertAtom.TRUE : BertAtom.FALSE);
     }
 
     private void encodeAtom(BertAtom atom) {
-        encodeAtom(atom.get());
+        if (atomCache != null && encodeAtomCacheRef(atom.get())) return;
+
+        byte[] encoded = atom.encoded();
+        if (termStats != null) termStats.tag(encoded[0]);
+        output.put(encoded);
     }
 
     private void encodeAtom(String s) {
-        if (s.length() <= SMALL_INTEGER_EXT_MAX_VAL) {
-            buffer.put(SMALL_ATOM_EXT);
-            putUnsignedByte(s.length());
+        if (atomCache != null && encodeAtomCacheRef(s)) return;
+
+        int length = TextCodec.utf8Length(s);
+        boolean ascii = length == s.length();
+
+        if (length <= SMALL_INTEGER_EXT_MAX_VAL) {
+            putTag(ascii ? SMALL_ATOM_EXT : SMALL_ATOM_UTF8_EXT);
+            putUnsignedByte(length);
         } else {
-            buffer.put(ATOM_EXT);
-            putUnsignedShort(s.length());
+            putTag(ascii ? ATOM_EXT : ATOM_UTF8_EXT);
+            putUnsignedShort(length);
         }
 
-        buffer.put(s.getBytes(utf8Charset));
+        output.putUtf8(s);
     }
 
     private void encodeString(String s) {
         if (stringAsBinary) {
-            encodeBinary(s.getBytes(utf8Charset));
-        } else if (s.length() <= STRING_EXT_MAX_VAL) {
-            buffer.put(STRING_EXT);
+            putTag(BINARY_EXT);
+            putUnsignedInt(TextCodec.utf8Length(s));
+            output.putUtf8(s);
+        } else if (s.length() <= STRING_EXT_MAX_VAL && TextCodec.isLatin1(s)) {
+            //STRING_EXT holds one byte per code point
+            putTag(STRING_EXT);
             putUnsignedShort(s.length());
-            buffer.put(s.getBytes(utf8Charset));
+            output.putLatin1(s);
         } else {
-            encodeArray(s.getBytes(utf8Charset));
+            encodeCodePoints(s);
+        }
+    }
+
+    private void encodeCodePoints(String s) {
+        enter();
+        putTag(LIST_EXT);
+        putUnsignedInt(s.codePointCount(0, s.length()));
+
+        for (int i = 0; i < s.length(); ) {
+            int codePoint = TextCodec.codePointAt(s, i);
+            encodeInteger(codePoint);
+            i += Character.charCount(codePoint);
         }
+        encodeTail();
+        leave();
     }
 
     private void encodeBinary(byte[] array) {
-        buffer.put(BINARY_EXT);
+        putTag(BINARY_EXT);
         putUnsignedInt(array.length);
-        buffer.put(array);
+        output.put(array);
+    }
+
+    private void encodeBinary(ByteBuffer binary) {
+        putTag(BINARY_EXT);
+        putUnsignedInt(binary.remaining());
+        output.put(binary);
     }
 
     private void encodeNull() {
-        buffer.put(NIL_EXT);
+        putTag(NIL_EXT);
+    }
+
+    /**
+     * NIL_EXT ending a list, not counted as a term of its own.
+     */
+    private void encodeTail() {
+        output.put(NIL_EXT);
     }
 
     private void encodeTuple(BertTuple tuple) {
 
         if (tuple.size() <= SMALL_INTEGER_EXT_MAX_VAL) {
-            buffer.put(SMALL_TUPLE_EXT);
+            putTag(SMALL_TUPLE_EXT);
             putUnsignedByte(tuple.size());
         } else {
-            buffer.put(LARGE_TUPLE_EXT);
+            putTag(LARGE_TUPLE_EXT);
             putUnsignedInt(tuple.size());
         }
 
@@ -214,28 +920,29 @@ public final class BertEncoder extends Bert implements DistributionHeader {
         }
     }
 
-    private void encodeList(List list) {
+    private void encodeList(List<?> list) {
 
-        buffer.put(LIST_EXT);
+        putTag(LIST_EXT);
 
         putUnsignedInt(list.size());
         for (Object o : list) {
             encode(o);
         }
-        encodeNull();
+        encodeTail();
     }
 
     private void encodeMap(Map<Object, Object> map) throws IllegalArgumentException {
 
-        if (mapAsPropList) buffer.put(LIST_EXT);
-        else buffer.put(MAP_EXT);
+        if (mapAsPropList) putTag(LIST_EXT);
+        else putTag(MAP_EXT);
 
         putUnsignedInt(map.size());
 
         for (Map.Entry<Object, Object> entry : map.entrySet()) {
 
             if (mapAsPropList) {
-                buffer.put(SMALL_TUPLE_EXT);
+                enter();
+                putTag(SMALL_TUPLE_EXT);
                 putUnsignedByte(2);
             }
 
@@ -248,14 +955,32 @@ public final class BertEncoder extends Bert implements DistributionHeader {
             }
 
             encode(entry.getValue());
+            if (mapAsPropList) leave();
         }
 
-        if (mapAsPropList) encodeNull();
+        if (mapAsPropList) encodeTail();
     }
 
     private void encodeArray(Object array) {
 
-        buffer.put(LIST_EXT);
+        if (array instanceof int[]) {
+            encodeArray((int[]) array);
+            return;
+        } else if (array instanceof long[]) {
+            encodeArray((long[]) array);
+            return;
+        } else if (array instanceof double[]) {
+            encodeArray((double[]) array);
+            return;
+        } else if (array instanceof float[]) {
+            encodeArray((float[]) array);
+            return;
+        } else if (array instanceof short[]) {
+            encodeArray((short[]) array);
+            return;
+        }
+
+        putTag(LIST_EXT);
 
         int elements = Array.getLength(array);
         putUnsignedInt(elements);
@@ -263,18 +988,84 @@ public final class BertEncoder extends Bert implements DistributionHeader {
             encode(Array.get(array, i));
         }
 
-        encodeNull();
+        encodeTail();
+    }
+
+    private void encodeArray(int[] array) {
+        putTag(LIST_EXT);
+        putUnsignedInt(array.length);
+        for (int i : array) {
+            encodeInteger(i);
+        }
+        encodeTail();
+    }
+
+    private void encodeArray(long[] array) {
+        putTag(LIST_EXT);
+        putUnsignedInt(array.length);
+        for (long l : array) {
+            encodeLong(l);
+        }
+        encodeTail();
+    }
+
+    private void encodeArray(double[] array) {
+        putTag(LIST_EXT);
+        putUnsignedInt(array.length);
+        for (double d : array) {
+            encodeDouble(d);
+        }
+        encodeTail();
+    }
+
+    private void encodeArray(float[] array) {
+        putTag(LIST_EXT);
+        putUnsignedInt(array.length);
+        for (float f : array) {
+            encodeDouble(f);
+        }
+        encodeTail();
+    }
+
+    private void encodeArray(short[] array) {
+        putTag(LIST_EXT);
+        putUnsignedInt(array.length);
+        for (short s : array) {
+            encodeInteger(s);
+        }
+        encodeTail();
+    }
+
+    private void enter() {
+        if (termStats != null) termStats.enter();
+    }
+
+    private void leave() {
+        if (termStats != null) termStats.exit();
+    }
+
+    private void putTag(byte tag) {
+        if (termStats != null) termStats.tag(tag);
+        output.put(tag);
     }
 
     private void putUnsignedByte(int i) {
-        buffer.put((byte) (i & 0xff));
+        output.put((byte) (i & 0xff));
     }
 
     private void putUnsignedShort(int i) {
-        buffer.putShort((short) (i & 0xffff));
+        putUnsignedShort(output, i);
+    }
+
+    private static void putUnsignedShort(BertOutput target, int i) {
+        target.putShort((short) (i & 0xffff));
     }
 
     private void putUnsignedInt(long l) {
-        buffer.putInt((int) (l & 0xffffffffL));
+        putUnsignedInt(output, l);
+    }
+
+    private static void putUnsignedInt(BertOutput target, long l) {
+        target.putInt((int) (l & 0xffffffffL));
     }
 }
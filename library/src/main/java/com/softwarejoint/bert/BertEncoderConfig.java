@@ -0,0 +1,252 @@
+package com.softwarejoint.bert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Immutable encoder options, built once and shared by any number of threads:
+ * <pre>
+ * BertEncoderConfig config = new BertEncoderConfig.Builder()
+ *         .setEncodeStringAsBinary(true)
+ *         .build();
+ * byte[] data = config.encodeAny(term);    //from any thread
+ * </pre>
+ * Each call borrows a {@link BertEncoder} holding the per call working state from an internal
+ * pool and returns it afterwards, so calls never contend on a lock. {@link #newEncoder()}
+ * hands out a dedicated encoder, e.g. for an {@link AtomCacheSession} which is per connection
+ * and therefore not part of the shared options.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertEncoderConfig {
+
+    private static final int MAX_POOLED_ENCODERS = 64;
+
+    private final boolean stringAsBinary;
+    private final boolean mapAsPropList;
+    private final boolean mapKeysAsAtom;
+    private final boolean mapKeysAsString;
+    private final BufferPool bufferPool;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final @ExternalFormat int minorVersion;
+    private final BertTypeRegistry typeRegistry;
+    private final BertMetricsListener metricsListener;
+
+    private final ConcurrentLinkedQueue<BertEncoder> encoders = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private BertEncoderConfig(Builder builder) {
+        stringAsBinary = builder.stringAsBinary;
+        mapAsPropList = builder.mapAsPropList;
+        mapKeysAsAtom = builder.mapKeysAsAtom;
+        mapKeysAsString = builder.mapKeysAsString;
+        bufferPool = builder.bufferPool;
+        compressionThreshold = builder.compressionThreshold;
+        compressionLevel = builder.compressionLevel;
+        minorVersion = builder.minorVersion;
+        typeRegistry = builder.typeRegistry;
+        metricsListener = builder.metricsListener;
+    }
+
+    /**
+     * A new encoder with these options, owned by the caller.
+     */
+    public BertEncoder newEncoder() {
+        BertEncoder encoder = new BertEncoder()
+                .setEncodeStringAsBinary(stringAsBinary)
+                .setEncodeMapAsPropList(mapAsPropList)
+                .setEncodeMapKeysAsAtom(mapKeysAsAtom)
+                .setEncodeMapKeysAsString(mapKeysAsString)
+                .setBufferPool(bufferPool)
+                .setCompressionThreshold(compressionThreshold)
+                .setCompressionLevel(compressionLevel)
+                .setTypeRegistry(typeRegistry)
+                .setMetricsListener(metricsListener);
+        encoder.setErlangMinorVersion(minorVersion);
+        return encoder;
+    }
+
+    public byte[] encodeAny(Object any) {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.encodeAny(any);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    public <T> byte[] encodeAny(T value, BertCodec<T> codec) {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.encodeAny(value, codec);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * @see BertEncoder#sizeOf(Object)
+     */
+    public int sizeOf(Object any) {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.sizeOf(any);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * @see BertEncoder#encodeTo(Object, ByteBuffer)
+     */
+    public int encodeTo(Object any, ByteBuffer destination) {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.encodeTo(any, destination);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * @see BertEncoder#encodeTo(Object, OutputStream)
+     */
+    public int encodeTo(Object any, OutputStream out) throws IOException {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.encodeTo(any, out);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * @see BertEncoder#encodeBatch(Iterable, GatheringByteChannel)
+     */
+    public long encodeBatch(Iterable<?> terms, GatheringByteChannel channel) throws IOException {
+        BertEncoder encoder = acquire();
+        try {
+            return encoder.encodeBatch(terms, channel);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    private BertEncoder acquire() {
+        BertEncoder encoder = encoders.poll();
+        if (encoder == null) return newEncoder();
+
+        pooled.decrementAndGet();
+        return encoder;
+    }
+
+    private void release(BertEncoder encoder) {
+        if (pooled.incrementAndGet() > MAX_POOLED_ENCODERS) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        encoders.offer(encoder);
+    }
+
+    public static final class Builder {
+
+        private boolean stringAsBinary;
+        private boolean mapAsPropList;
+        private boolean mapKeysAsAtom;
+        private boolean mapKeysAsString;
+        private BufferPool bufferPool;
+        private int compressionThreshold = -1;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private @ExternalFormat int minorVersion = ExternalFormat.NEW;
+        private BertTypeRegistry typeRegistry;
+        private BertMetricsListener metricsListener;
+
+        public Builder setEncodeStringAsBinary(boolean enabled) {
+            stringAsBinary = enabled;
+            return this;
+        }
+
+        public Builder setEncodeMapAsPropList(boolean enabled) {
+            mapAsPropList = enabled;
+            return this;
+        }
+
+        public Builder setEncodeMapKeysAsAtom(boolean enabled) {
+            mapKeysAsAtom = enabled;
+            return this;
+        }
+
+        public Builder setEncodeMapKeysAsString(boolean enabled) {
+            mapKeysAsString = enabled;
+            return this;
+        }
+
+        /**
+         * No effect, see {@link BertEncoder#setBufferSize(int)}.
+         */
+        @Deprecated
+        public Builder setBufferSize(int bufferSize) {
+            return this;
+        }
+
+        /**
+         * @see BertEncoder#setBufferPool(BufferPool)
+         */
+        public Builder setBufferPool(BufferPool pool) {
+            bufferPool = pool;
+            return this;
+        }
+
+        /**
+         * @see BertEncoder#setCompressionThreshold(int)
+         */
+        public Builder setCompressionThreshold(int bytes) {
+            compressionThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * @see BertEncoder#setCompressionLevel(int)
+         */
+        public Builder setCompressionLevel(int level) {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalArgumentException("Invalid compression level " + level);
+            }
+            compressionLevel = level;
+            return this;
+        }
+
+        public Builder setErlangMinorVersion(@ExternalFormat int version) {
+            minorVersion = version;
+            return this;
+        }
+
+        /**
+         * @see BertEncoder#setTypeRegistry(BertTypeRegistry)
+         */
+        public Builder setTypeRegistry(BertTypeRegistry registry) {
+            typeRegistry = registry;
+            return this;
+        }
+
+        /**
+         * Shared by all encoders of the config, so it must be thread safe like {@link BertMetrics}.
+         *
+         * @see BertEncoder#setMetricsListener(BertMetricsListener)
+         */
+        public Builder setMetricsListener(BertMetricsListener listener) {
+            metricsListener = listener;
+            return this;
+        }
+
+        public BertEncoderConfig build() {
+            return new BertEncoderConfig(this);
+        }
+    }
+}
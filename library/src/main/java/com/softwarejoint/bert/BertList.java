@@ -0,0 +1,38 @@
+package com.softwarejoint.bert;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list backed by an array of exactly its size, returned for lists when
+ * {@link BertDecoder#setDecodeCompactContainers(boolean)} is enabled.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertList extends AbstractList<Object> implements RandomAccess {
+
+    static final BertList EMPTY = new BertList(new Object[0]);
+
+    private final Object[] elements;
+
+    /**
+     * @param elements taken over, not copied
+     */
+    BertList(Object[] elements) {
+        this.elements = elements;
+    }
+
+    @Override
+    public Object get(int index) {
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return elements.clone();
+    }
+}
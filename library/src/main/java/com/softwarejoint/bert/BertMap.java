@@ -0,0 +1,202 @@
+package com.softwarejoint.bert;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map keeping keys and values in insertion order in one array of exactly its size,
+ * returned for maps and proplists when {@link BertDecoder#setDecodeCompactContainers(boolean)}
+ * is enabled. Small maps are searched linearly; a hash index is built for larger ones on their
+ * first lookup, so maps that are only iterated never pay for it.
+ * <p>
+ * {@link #keyAt(int)} and {@link #valueAt(int)} iterate without allocating entries.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertMap extends AbstractMap<Object, Object> {
+
+    static final BertMap EMPTY = new BertMap(new Object[0]);
+
+    private static final int LINEAR_SCAN_MAX = 8;
+
+    //key, value, key, value, ...
+    private final Object[] entries;
+
+    //pair index + 1 per slot, 0 for free; published whole through the volatile write
+    private volatile int[] hashIndex;
+
+    private BertMap(Object[] entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Copies {@code pairs} keys and values from {@code keyValues}, starting at {@code from}.
+     * A repeated key keeps its first position and its last value, as in a LinkedHashMap.
+     */
+    static BertMap of(Object[] keyValues, int from, int pairs) {
+        if (pairs == 0) return EMPTY;
+
+        Object[] entries = new Object[pairs * 2];
+        //only to find repeated keys, the map builds its own index when first searched
+        int[] table = (pairs > LINEAR_SCAN_MAX) ? new int[tableSize(pairs)] : null;
+        int count = 0;
+
+        for (int i = 0; i < pairs; i++) {
+            Object key = keyValues[from + 2 * i];
+            Object value = keyValues[from + 2 * i + 1];
+
+            int found = (table != null) ? insert(table, entries, key, count) : scan(entries, key, count);
+            if (found >= 0) {
+                entries[2 * found + 1] = value;
+                continue;
+            }
+
+            entries[2 * count] = key;
+            entries[2 * count + 1] = value;
+            count++;
+        }
+
+        if (count < pairs) {
+            Object[] exact = new Object[count * 2];
+            System.arraycopy(entries, 0, exact, 0, exact.length);
+            entries = exact;
+        }
+        return new BertMap(entries);
+    }
+
+    public Object keyAt(int index) {
+        checkIndex(index);
+        return entries[2 * index];
+    }
+
+    public Object valueAt(int index) {
+        checkIndex(index);
+        return entries[2 * index + 1];
+    }
+
+    @Override
+    public int size() {
+        return entries.length >> 1;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int found = indexOf(key);
+        return (found >= 0) ? entries[2 * found + 1] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new Iterator<Entry<Object, Object>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size();
+                    }
+
+                    @Override
+                    public Entry<Object, Object> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(entries[2 * i], entries[2 * i + 1]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BertMap.this.size();
+            }
+        };
+    }
+
+    private int indexOf(Object key) {
+        int pairs = size();
+        if (pairs <= LINEAR_SCAN_MAX) return scan(entries, key, pairs);
+
+        int[] table = hashIndex;
+        if (table == null) hashIndex = table = buildIndex(pairs);
+
+        int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int found = table[slot] - 1;
+            if (same(key, entries[2 * found])) return found;
+        }
+        return -1;
+    }
+
+    private int[] buildIndex(int pairs) {
+        int[] table = new int[tableSize(pairs)];
+        int mask = table.length - 1;
+
+        for (int i = 0; i < pairs; i++) {
+            int slot = hash(entries[2 * i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        return table;
+    }
+
+    /**
+     * @return the pair index of an equal key already in {@code table}, or -1 after adding
+     * {@code key} as pair {@code count}
+     */
+    private static int insert(int[] table, Object[] entries, Object key, int count) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int found = table[slot] - 1;
+            if (same(key, entries[2 * found])) return found;
+        }
+
+        table[slot] = count + 1;
+        return -1;
+    }
+
+    private static int scan(Object[] entries, Object key, int pairs) {
+        for (int i = 0; i < pairs; i++) {
+            if (same(key, entries[2 * i])) return i;
+        }
+        return -1;
+    }
+
+    private static int tableSize(int pairs) {
+        //at most half full
+        return Integer.highestOneBit(pairs * 2 - 1) << 1;
+    }
+
+    private static int hash(Object key) {
+        if (key == null) return 0;
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(Object key, Object other) {
+        return (key == null) ? other == null : key.equals(other);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.softwarejoint.bert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free {@link BertMetricsListener} totalling terms, bytes, time, tags and a latency
+ * histogram per direction. Counters are striped per thread, so any number of encoders and
+ * decoders may share one instance without contending on the same cache line:
+ * <pre>
+ * BertMetrics metrics = new BertMetrics();
+ * BertEncoderConfig config = new BertEncoderConfig.Builder().setMetricsListener(metrics).build();
+ * ...
+ * long bytes = metrics.getEncodedBytes();
+ * </pre>
+ * Reads sum the stripes and are not atomic across counters.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertMetrics implements BertMetricsListener {
+
+    /**
+     * Latency bucket {@code i} counts terms taking from 2^i up to 2^(i+1) nanoseconds.
+     */
+    public static final int LATENCY_BUCKETS = 64;
+
+    private static final int TERMS = 0;
+    private static final int BYTES = 1;
+    private static final int NANOS = 2;
+    private static final int TAGS = 4;
+    private static final int LATENCY = TAGS + 256;
+    private static final int DIRECTION = LATENCY + LATENCY_BUCKETS;
+
+    private static final int ENCODED = 0;
+    private static final int DECODED = DIRECTION;
+
+    //padding keeps neighbouring stripes off each other's cache lines
+    private static final int STRIPE = 2 * DIRECTION + 16;
+
+    private final AtomicLongArray counters;
+    private final int mask;
+
+    private final AtomicLong maxEncodedSize = new AtomicLong();
+    private final AtomicLong maxDecodedSize = new AtomicLong();
+    private final AtomicInteger maxEncodedDepth = new AtomicInteger();
+    private final AtomicInteger maxDecodedDepth = new AtomicInteger();
+
+    public BertMetrics() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes expected number of concurrently counting threads, rounded up to a power of two
+     */
+    public BertMetrics(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes));
+        if (count < stripes) count <<= 1;
+
+        counters = new AtomicLongArray(count * STRIPE);
+        mask = count - 1;
+    }
+
+    @Override
+    public void onEncoded(BertTermStats stats) {
+        record(ENCODED, stats);
+        raise(maxEncodedSize, stats.getBytes());
+        raise(maxEncodedDepth, stats.getMaxDepth());
+    }
+
+    @Override
+    public void onDecoded(BertTermStats stats) {
+        record(DECODED, stats);
+        raise(maxDecodedSize, stats.getBytes());
+        raise(maxDecodedDepth, stats.getMaxDepth());
+    }
+
+    private void record(int direction, BertTermStats stats) {
+        int base = stripe() + direction;
+
+        counters.incrementAndGet(base + TERMS);
+        counters.addAndGet(base + BYTES, stats.getBytes());
+        counters.addAndGet(base + NANOS, stats.getNanos());
+        counters.incrementAndGet(base + LATENCY + bucket(stats.getNanos()));
+
+        for (int i = 0; i < stats.getTagKinds(); i++) {
+            byte tag = stats.getTag(i);
+            counters.addAndGet(base + TAGS + (tag & 0xff), stats.getTagCount(tag));
+        }
+    }
+
+    private int stripe() {
+        return ((int) Thread.currentThread().getId() & mask) * STRIPE;
+    }
+
+    private static int bucket(long nanos) {
+        return (nanos <= 1) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    private static void raise(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    private long sum(int slot) {
+        long total = 0;
+        for (int base = 0; base < counters.length(); base += STRIPE) {
+            total += counters.get(base + slot);
+        }
+        return total;
+    }
+
+    private long[] histogram(int direction) {
+        long[] buckets = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            buckets[i] = sum(direction + LATENCY + i);
+        }
+        return buckets;
+    }
+
+    public long getEncodedTerms() {
+        return sum(ENCODED + TERMS);
+    }
+
+    public long getEncodedBytes() {
+        return sum(ENCODED + BYTES);
+    }
+
+    public long getEncodedNanos() {
+        return sum(ENCODED + NANOS);
+    }
+
+    public long getEncodedTagCount(byte tag) {
+        return sum(ENCODED + TAGS + (tag & 0xff));
+    }
+
+    /**
+     * @see #LATENCY_BUCKETS
+     */
+    public long[] getEncodedLatencyHistogram() {
+        return histogram(ENCODED);
+    }
+
+    /**
+     * Largest term encoded, e.g. to size the chunks of a {@link BufferPool}.
+     */
+    public long getMaxEncodedSize() {
+        return maxEncodedSize.get();
+    }
+
+    public int getMaxEncodedDepth() {
+        return maxEncodedDepth.get();
+    }
+
+    public long getDecodedTerms() {
+        return sum(DECODED + TERMS);
+    }
+
+    public long getDecodedBytes() {
+        return sum(DECODED + BYTES);
+    }
+
+    public long getDecodedNanos() {
+        return sum(DECODED + NANOS);
+    }
+
+    public long getDecodedTagCount(byte tag) {
+        return sum(DECODED + TAGS + (tag & 0xff));
+    }
+
+    /**
+     * @see #LATENCY_BUCKETS
+     */
+    public long[] getDecodedLatencyHistogram() {
+        return histogram(DECODED);
+    }
+
+    public long getMaxDecodedSize() {
+        return maxDecodedSize.get();
+    }
+
+    public int getMaxDecodedDepth() {
+        return maxDecodedDepth.get();
+    }
+
+    /**
+     * Clears all counters; counts recorded concurrently may partly survive.
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        maxEncodedSize.set(0);
+        maxDecodedSize.set(0);
+        maxEncodedDepth.set(0);
+        maxDecodedDepth.set(0);
+    }
+}
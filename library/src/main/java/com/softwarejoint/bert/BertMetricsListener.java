@@ -0,0 +1,13 @@
+package com.softwarejoint.bert;
+
+/**
+ * Receives the cost of every top level term of the encoders and decoders it is set on.
+ * Without a listener nothing is measured. Called on the encoding or decoding thread, so
+ * implementations shared between threads must be thread safe, like {@link BertMetrics}.
+ */
+public interface BertMetricsListener {
+
+    void onEncoded(BertTermStats stats);
+
+    void onDecoded(BertTermStats stats);
+}
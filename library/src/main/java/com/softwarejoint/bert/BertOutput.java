@@ -0,0 +1,317 @@
+package com.softwarejoint.bert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Output sink for encoded terms. Either writes straight into a caller supplied
+ * {@link ByteBuffer} or grows on demand with chunks borrowed from a {@link BufferPool}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class BertOutput {
+
+    private final BufferPool pool;
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+
+    private ByteBuffer current;
+    private int start;
+    private int flushed;
+
+    public BertOutput(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public BertOutput(ByteBuffer destination) {
+        this.pool = null;
+        wrap(destination);
+    }
+
+    public boolean isGrowable() {
+        return pool != null;
+    }
+
+    void wrap(ByteBuffer destination) {
+        current = destination;
+        start = destination.position();
+        flushed = 0;
+    }
+
+    /**
+     * Bytes written since the output was created, wrapped or reset.
+     */
+    public int size() {
+        if (current == null) return flushed;
+        return flushed + current.position() - start;
+    }
+
+    public BertOutput put(byte b) {
+        ensure(1);
+        current.put(b);
+        return this;
+    }
+
+    public BertOutput putShort(short s) {
+        ensure(2);
+        current.putShort(s);
+        return this;
+    }
+
+    public BertOutput putInt(int i) {
+        ensure(4);
+        current.putInt(i);
+        return this;
+    }
+
+    public BertOutput putLong(long l) {
+        ensure(8);
+        current.putLong(l);
+        return this;
+    }
+
+    public BertOutput putDouble(double d) {
+        ensure(8);
+        current.putDouble(d);
+        return this;
+    }
+
+    /**
+     * Overwrites an int written earlier with {@link #putInt(int)}; {@code offset} counts
+     * from the start like {@link #size()}.
+     */
+    void putInt(int offset, int i) {
+        for (int c = 0; c < chunks.size(); c++) {
+            ByteBuffer chunk = chunks.get(c);
+            if (offset < chunk.position()) {
+                chunk.putInt(offset, i);
+                return;
+            }
+            offset -= chunk.position();
+        }
+
+        current.putInt(start + offset, i);
+    }
+
+    public BertOutput put(byte[] src) {
+        return put(src, 0, src.length);
+    }
+
+    public BertOutput put(byte[] src, int offset, int length) {
+        if (pool == null) {
+            current.put(src, offset, length);
+            return this;
+        }
+
+        while (length > 0) {
+            ensure(1);
+            int count = Math.min(length, current.remaining());
+            current.put(src, offset, count);
+            offset += count;
+            length -= count;
+        }
+        return this;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code src} without changing its position.
+     */
+    public BertOutput put(ByteBuffer src) {
+        ByteBuffer slice = src.duplicate();
+
+        if (pool == null) {
+            current.put(slice);
+            return this;
+        }
+
+        while (slice.hasRemaining()) {
+            ensure(1);
+            int count = Math.min(slice.remaining(), current.remaining());
+            int limit = slice.limit();
+            slice.limit(slice.position() + count);
+            current.put(slice);
+            slice.limit(limit);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the chars of {@code s}, which must all be below 256, one byte each.
+     */
+    void putLatin1(CharSequence s) {
+        int i = 0;
+        int length = s.length();
+
+        while (i < length) {
+            ensure(1);
+            int end = i + Math.min(length - i, current.remaining());
+
+            if (current.hasArray()) {
+                byte[] array = current.array();
+                int position = current.arrayOffset() + current.position();
+                current.position(current.position() + end - i);
+
+                while (i < end) {
+                    array[position++] = (byte) s.charAt(i++);
+                }
+            } else {
+                while (i < end) {
+                    current.put((byte) s.charAt(i++));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes {@code s} as UTF-8 straight into the chunks, {@link TextCodec#utf8Length} bytes.
+     */
+    void putUtf8(CharSequence s) {
+        int i = 0;
+        int length = s.length();
+        byte[] scratch = null;
+
+        while (i < length) {
+            if (current != null && current.hasArray() && current.remaining() >= 4) {
+                byte[] array = current.array();
+                int base = current.arrayOffset();
+                int position = base + current.position();
+                //room for the longest sequence after every char
+                int stop = base + current.limit() - 3;
+
+                while (i < length && position < stop) {
+                    char c = s.charAt(i);
+                    if (c < 0x80) {
+                        array[position++] = (byte) c;
+                        i++;
+                    } else {
+                        int codePoint = TextCodec.codePointAt(s, i);
+                        position = TextCodec.putUtf8(array, position, codePoint);
+                        i += Character.charCount(codePoint);
+                    }
+                }
+                current.position(position - base);
+                continue;
+            }
+
+            //chunk boundary or direct buffer: one code point at a time
+            if (scratch == null) scratch = new byte[4];
+            int codePoint = TextCodec.codePointAt(s, i);
+            int count = TextCodec.putUtf8(scratch, 0, codePoint);
+            ensure(count);
+            current.put(scratch, 0, count);
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    /**
+     * Makes sure the next {@code bytes} bytes land in one chunk, so a tag and its
+     * length header are never split.
+     */
+    void ensure(int bytes) {
+        if (current != null && current.remaining() >= bytes) return;
+
+        if (pool == null) {
+            throw new BufferOverflowException();
+        }
+
+        if (bytes > pool.getChunkSize()) {
+            throw new IllegalArgumentException("Cannot reserve " + bytes + " contiguous bytes");
+        }
+
+        if (current != null) {
+            flushed += current.position() - start;
+            chunks.add(current);
+        }
+
+        current = pool.acquire();
+        start = 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+
+        if (current == null) return;
+
+        if (current.hasArray()) {
+            out.write(current.array(), current.arrayOffset() + start, current.position() - start);
+        } else {
+            ByteBuffer written = written();
+            byte[] data = new byte[written.remaining()];
+            written.get(data);
+            out.write(data);
+        }
+    }
+
+    public void writeTo(ByteBuffer destination) {
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            destination.put(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+
+        if (current != null) destination.put(written());
+    }
+
+    public void writeTo(BertOutput destination) {
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            destination.put(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+
+        if (current != null) destination.put(written());
+    }
+
+    /**
+     * Flipped views of the written chunks, in order. They share memory with this output
+     * and are only valid until it is reset.
+     */
+    public ByteBuffer[] toBuffers() {
+        int count = chunks.size() + (current != null ? 1 : 0);
+        ByteBuffer[] buffers = new ByteBuffer[count];
+
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i).duplicate();
+            chunk.flip();
+            buffers[i] = chunk;
+        }
+
+        if (current != null) buffers[count - 1] = written();
+        return buffers;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer data = ByteBuffer.allocate(size());
+        writeTo(data);
+        return data.array();
+    }
+
+    private ByteBuffer written() {
+        ByteBuffer written = current.duplicate();
+        written.limit(written.position());
+        written.position(start);
+        return written;
+    }
+
+    /**
+     * Returns all chunks back to the pool. The output can be written again afterwards.
+     */
+    public void reset() {
+        if (pool == null) {
+            if (current != null) current.position(start);
+            return;
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            pool.release(chunks.get(i));
+        }
+        chunks.clear();
+
+        if (current != null) pool.release(current);
+        current = null;
+        start = 0;
+        flushed = 0;
+    }
+}
@@ -0,0 +1,235 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compiled path to a value nested inside a term, e.g. the status of
+ * {@code {reply, Ref, #{<<"status">> := S}}} is {@code BertPath.root().element(2).key("status")}.
+ * <p>
+ * Resolved by {@link BertDecoder#extract(ByteBuffer, BertPath)} at byte level: unrelated parts
+ * are skipped and keys are compared against their encoded bytes, so only the target is decoded.
+ * Paths are immutable and can be shared between threads.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertPath implements DistributionHeader {
+
+    private static final BertPath ROOT = new BertPath(new Step[0]);
+
+    private final Step[] steps;
+
+    private BertPath(Step[] steps) {
+        this.steps = steps;
+    }
+
+    public static BertPath root() {
+        return ROOT;
+    }
+
+    /**
+     * Element {@code index} (0 based) of a tuple or list.
+     */
+    public BertPath element(int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Index cannot be negative");
+        }
+        return append(new Step(index, null));
+    }
+
+    /**
+     * Value stored under {@code key} in a map or in a proplist of 2-tuples. A BertAtom or Boolean
+     * matches atoms, byte[] matches binaries, a String matches atoms, binaries and strings with the
+     * same UTF-8 text and an integral Number matches integers of the same value.
+     */
+    public BertPath key(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        return append(new Step(-1, key));
+    }
+
+    public int length() {
+        return steps.length;
+    }
+
+    private BertPath append(Step step) {
+        Step[] appended = Arrays.copyOf(steps, steps.length + 1);
+        appended[steps.length] = step;
+        return new BertPath(appended);
+    }
+
+    /**
+     * Position of the target term inside {@code buffer}, or -1 when the path does not exist.
+     */
+    int locate(BertDecoder decoder, ByteBuffer buffer, int position) throws InvalidObjectException {
+        for (Step step : steps) {
+            position = (step.key == null)
+                    ? locateElement(buffer, position, step.index)
+                    : locateKey(decoder, buffer, position, step);
+            if (position < 0) return -1;
+        }
+        return position;
+    }
+
+    private static int locateElement(ByteBuffer buffer, int position, int index) throws InvalidObjectException {
+        byte tag = header(buffer, position);
+        if (tag != SMALL_TUPLE_EXT && tag != LARGE_TUPLE_EXT && tag != LIST_EXT) return -1;
+        if (index >= TermScanner.arity(buffer, position)) return -1;
+
+        position = TermScanner.firstChild(buffer, position);
+        for (int i = 0; i < index; i++) {
+            position = TermScanner.skip(buffer, position);
+        }
+        return position;
+    }
+
+    private static int locateKey(BertDecoder decoder, ByteBuffer buffer, int position, Step step)
+            throws InvalidObjectException {
+        byte tag = header(buffer, position);
+        if (tag != MAP_EXT && tag != LIST_EXT) return -1;
+
+        long count = TermScanner.arity(buffer, position);
+        position = TermScanner.firstChild(buffer, position);
+
+        for (long i = 0; i < count; i++) {
+            if (tag == MAP_EXT) {
+                int value = TermScanner.skip(buffer, position);
+                if (step.matches(decoder, buffer, position)) return value;
+                position = TermScanner.skip(buffer, value);
+                continue;
+            }
+
+            //proplist element, only {Key, Value} tuples can match
+            int next = TermScanner.skip(buffer, position);
+            if (buffer.get(position) == SMALL_TUPLE_EXT && TermScanner.u8(buffer, position + 1) == 2
+                    && step.matches(decoder, buffer, position + 2)) {
+                return TermScanner.skip(buffer, position + 2);
+            }
+            position = next;
+        }
+        return -1;
+    }
+
+    private static byte header(ByteBuffer buffer, int position) throws InvalidObjectException {
+        if (position >= buffer.limit()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        byte tag = buffer.get(position);
+        int headerSize = (TermScanner.firstChild(buffer, position) - position);
+        if (position + headerSize > buffer.limit()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+        return tag;
+    }
+
+    private static final class Step {
+
+        private static final Charset UTF8 = TextCodec.UTF8;
+        private static final Charset LATIN1 = TextCodec.LATIN1;
+
+        private static final int MATCH_ATOM = 1;
+        private static final int MATCH_BINARY = 2;
+        private static final int MATCH_TEXT = MATCH_ATOM | MATCH_BINARY | 4;
+        private static final int MATCH_INTEGER = 8;
+        private static final int MATCH_DECODED = 16;
+
+        final int index;
+        final Object key;
+
+        private final int match;
+        private final byte[] bytes;
+        //text of the key as SMALL_ATOM_EXT, ATOM_EXT and STRING_EXT hold it, null if not Latin-1
+        private final byte[] latin1;
+        private final long number;
+
+        Step(int index, Object key) {
+            this.index = index;
+            this.key = key;
+
+            if (key == null) {
+                match = 0;
+                bytes = null;
+                latin1 = null;
+                number = 0;
+            } else if (key instanceof BertAtom || key instanceof Boolean || key instanceof String) {
+                match = (key instanceof String) ? MATCH_TEXT : MATCH_ATOM;
+                String text = key.toString();
+                bytes = text.getBytes(UTF8);
+                latin1 = TextCodec.isLatin1(text) ? text.getBytes(LATIN1) : null;
+                number = 0;
+            } else if (key instanceof byte[]) {
+                match = MATCH_BINARY;
+                bytes = (byte[]) key;
+                latin1 = null;
+                number = 0;
+            } else if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+                match = MATCH_INTEGER;
+                bytes = null;
+                latin1 = null;
+                number = ((Number) key).longValue();
+            } else {
+                match = MATCH_DECODED;
+                bytes = null;
+                latin1 = null;
+                number = 0;
+            }
+        }
+
+        boolean matches(BertDecoder decoder, ByteBuffer buffer, int position) throws InvalidObjectException {
+            if (match == MATCH_DECODED) {
+                ByteBuffer view = buffer.duplicate();
+                view.position(position);
+                return LazyTerm.keyEquals(key, decoder.decodeTerm(view));
+            }
+
+            switch (buffer.get(position)) {
+                case SMALL_ATOM_EXT:
+                    return (match & MATCH_ATOM) != 0 && bytesEqual(latin1, buffer, position + 2, TermScanner.u8(buffer, position + 1));
+                case SMALL_ATOM_UTF8_EXT:
+                    return (match & MATCH_ATOM) != 0 && bytesEqual(bytes, buffer, position + 2, TermScanner.u8(buffer, position + 1));
+                case ATOM_EXT:
+                    return (match & MATCH_ATOM) != 0 && bytesEqual(latin1, buffer, position + 3, TermScanner.u16(buffer, position + 1));
+                case ATOM_UTF8_EXT:
+                    return (match & MATCH_ATOM) != 0 && bytesEqual(bytes, buffer, position + 3, TermScanner.u16(buffer, position + 1));
+                case BINARY_EXT:
+                    return (match & MATCH_BINARY) != 0 && bytesEqual(bytes, buffer, position + 5, TermScanner.u32(buffer, position + 1));
+                case STRING_EXT:
+                    return match == MATCH_TEXT && bytesEqual(latin1, buffer, position + 3, TermScanner.u16(buffer, position + 1));
+                case SMALL_INTEGER_EXT:
+                    return match == MATCH_INTEGER && number == TermScanner.u8(buffer, position + 1);
+                case INTEGER_EXT:
+                    return match == MATCH_INTEGER && number == buffer.getInt(position + 1);
+                case SMALL_BIG_EXT:
+                    return match == MATCH_INTEGER && bigEquals(buffer, position);
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @param expected key bytes in the encoding of the tag, null when the key cannot be encoded in it
+         */
+        private static boolean bytesEqual(byte[] expected, ByteBuffer buffer, int position, long length) {
+            if (expected == null || length != expected.length || position + length > buffer.limit()) return false;
+
+            for (int i = 0; i < expected.length; i++) {
+                if (expected[i] != buffer.get(position + i)) return false;
+            }
+            return true;
+        }
+
+        private boolean bigEquals(ByteBuffer buffer, int position) {
+            int byteCount = TermScanner.u8(buffer, position + 1);
+            if (byteCount > 8 || position + 3 + byteCount > buffer.limit()) return false;
+
+            long magnitude = NumberCodec.getMagnitude(buffer, position + 3, byteCount);
+            boolean negative = buffer.get(position + 2) != 0;
+            if (!NumberCodec.fitsLong(negative, magnitude)) return false;
+
+            return number == (negative ? -magnitude : magnitude);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Typed reads and writes of single terms, used by generated {@link BertCodec} classes.
+ * Writers append to a {@link BertOutput}; readers consume from the position of a big-endian
+ * {@link ByteBuffer}. Atom cache references are not resolved here.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertPrimitives implements DistributionHeader {
+
+    private static final Charset UTF8 = TextCodec.UTF8;
+    private static final Charset LATIN1 = TextCodec.LATIN1;
+
+    private BertPrimitives() {
+    }
+
+    public static void writeTupleHeader(BertOutput out, int arity) {
+        if (arity <= SMALL_INTEGER_EXT_MAX_VAL) {
+            out.put(SMALL_TUPLE_EXT);
+            out.put((byte) arity);
+        } else {
+            out.put(LARGE_TUPLE_EXT);
+            out.putInt(arity);
+        }
+    }
+
+    /**
+     * Starts a proper list; write the elements and then {@link #writeNil(BertOutput)}.
+     */
+    public static void writeListHeader(BertOutput out, int length) {
+        out.put(LIST_EXT);
+        out.putInt(length);
+    }
+
+    public static void writeMapHeader(BertOutput out, int pairs) {
+        out.put(MAP_EXT);
+        out.putInt(pairs);
+    }
+
+    public static void writeNil(BertOutput out) {
+        out.put(NIL_EXT);
+    }
+
+    public static void writeInt(BertOutput out, int i) {
+        if (SMALL_INTEGER_EXT_MIN_VAL <= i && i <= SMALL_INTEGER_EXT_MAX_VAL) {
+            out.put(SMALL_INTEGER_EXT);
+            out.put((byte) i);
+        } else {
+            out.put(INTEGER_EXT);
+            out.putInt(i);
+        }
+    }
+
+    public static void writeLong(BertOutput out, long l) {
+        if (Integer.MIN_VALUE <= l && l <= Integer.MAX_VALUE) {
+            writeInt(out, (int) l);
+            return;
+        }
+
+        out.put(SMALL_BIG_EXT);
+        NumberCodec.putLong(out, l);
+    }
+
+    public static void writeDouble(BertOutput out, double d) {
+        out.put(NEW_FLOAT_EXT);
+        out.putDouble(d);
+    }
+
+    public static void writeBoolean(BertOutput out, boolean b) {
+        out.put((b ? BertAtom.TRUE : BertAtom.FALSE).encoded());
+    }
+
+    public static void writeAtom(BertOutput out, BertAtom atom) {
+        out.put(atom.encoded());
+    }
+
+    public static void writeBinary(BertOutput out, byte[] data) {
+        out.put(BINARY_EXT);
+        out.putInt(data.length);
+        out.put(data);
+    }
+
+    /**
+     * Writes {@code s} as a UTF-8 binary.
+     */
+    public static void writeBinary(BertOutput out, String s) {
+        out.put(BINARY_EXT);
+        out.putInt(TextCodec.utf8Length(s));
+        out.putUtf8(s);
+    }
+
+    /**
+     * Consumes a NIL_EXT if it is next.
+     *
+     * @return true when a NIL_EXT was consumed
+     */
+    public static boolean readNil(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        if (in.get(in.position()) != NIL_EXT) return false;
+        in.get();
+        return true;
+    }
+
+    public static int readTupleHeader(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        switch (in.get()) {
+            case SMALL_TUPLE_EXT:
+                require(in, 1);
+                return in.get() & 0xff;
+            case LARGE_TUPLE_EXT:
+                return readLength(in);
+            default:
+                throw unexpected(in, "tuple");
+        }
+    }
+
+    /**
+     * Length of the list that follows; after its elements call {@link #readListTail(ByteBuffer)}.
+     * NIL_EXT reads as length 0 and is then consumed as the tail.
+     */
+    public static int readListHeader(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        switch (in.get()) {
+            case NIL_EXT:
+                in.position(in.position() - 1);
+                return 0;
+            case LIST_EXT:
+                return readLength(in);
+            default:
+                throw unexpected(in, "list");
+        }
+    }
+
+    public static void readListTail(ByteBuffer in) throws InvalidObjectException {
+        if (!readNil(in)) {
+            throw new InvalidObjectException("Improper lists are not supported");
+        }
+    }
+
+    public static int readMapHeader(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        if (in.get() != MAP_EXT) throw unexpected(in, "map");
+        return readLength(in);
+    }
+
+    public static int readInt(ByteBuffer in) throws InvalidObjectException {
+        long l = readLong(in);
+        if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+            throw new InvalidObjectException("Integer out of range " + l);
+        }
+        return (int) l;
+    }
+
+    public static long readLong(ByteBuffer in) throws InvalidObjectException {
+        require(in, 2);
+        switch (in.get()) {
+            case SMALL_INTEGER_EXT:
+                return in.get() & 0xff;
+            case INTEGER_EXT:
+                require(in, 4);
+                return in.getInt();
+            case SMALL_BIG_EXT:
+                int byteCount = in.get() & 0xff;
+                require(in, byteCount + 1);
+                boolean negative = in.get() != 0;
+                if (byteCount > 8) throw new InvalidObjectException("Integer does not fit in 64 bits");
+
+                long magnitude = NumberCodec.getMagnitude(in, in.position(), byteCount);
+                if (!NumberCodec.fitsLong(negative, magnitude)) {
+                    throw new InvalidObjectException("Integer does not fit in 64 bits");
+                }
+                in.position(in.position() + byteCount);
+                return negative ? -magnitude : magnitude;
+            default:
+                throw unexpected(in, "integer");
+        }
+    }
+
+    public static double readDouble(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        switch (in.get(in.position())) {
+            case NEW_FLOAT_EXT:
+                in.get();
+                require(in, 8);
+                return in.getDouble();
+            case FLOAT_EXT:
+                in.get();
+                require(in, FLOAT_LENGTH);
+                return NumberCodec.getOldFloat(in);
+            default:
+                return readLong(in);
+        }
+    }
+
+    public static boolean readBoolean(ByteBuffer in) throws InvalidObjectException {
+        String atom = readAtomText(in);
+        if ("true".equals(atom)) return true;
+        if ("false".equals(atom)) return false;
+        throw new InvalidObjectException("Expected boolean but got " + atom);
+    }
+
+    public static String readAtomText(ByteBuffer in) throws InvalidObjectException {
+        require(in, 2);
+        switch (in.get()) {
+            case SMALL_ATOM_EXT:
+                return readText(in, in.get() & 0xff, LATIN1);
+            case ATOM_EXT:
+                require(in, 2);
+                return readText(in, in.getShort() & 0xffff, LATIN1);
+            case SMALL_ATOM_UTF8_EXT:
+                return readText(in, in.get() & 0xff, UTF8);
+            case ATOM_UTF8_EXT:
+                require(in, 2);
+                return readText(in, in.getShort() & 0xffff, UTF8);
+            default:
+                throw unexpected(in, "atom");
+        }
+    }
+
+    public static BertAtom readAtom(ByteBuffer in) throws InvalidObjectException {
+        return new BertAtom(readAtomText(in));
+    }
+
+    public static byte[] readBinary(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        if (in.get() != BINARY_EXT) throw unexpected(in, "binary");
+
+        byte[] data = new byte[readLength(in)];
+        in.get(data);
+        return data;
+    }
+
+    /**
+     * Reads a binary, string or atom as text, e.g. a map key. NIL_EXT reads as null.
+     */
+    public static String readString(ByteBuffer in) throws InvalidObjectException {
+        require(in, 1);
+        switch (in.get(in.position())) {
+            case NIL_EXT:
+                in.get();
+                return null;
+            case BINARY_EXT:
+                in.get();
+                return readText(in, readLength(in));
+            case STRING_EXT:
+                in.get();
+                require(in, 2);
+                return readText(in, in.getShort() & 0xffff, LATIN1);
+            case LIST_EXT:
+                int length = readListHeader(in);
+                StringBuilder builder = new StringBuilder(length);
+                for (int i = 0; i < length; i++) {
+                    builder.appendCodePoint(readInt(in));
+                }
+                readListTail(in);
+                return builder.toString();
+            default:
+                return readAtomText(in);
+        }
+    }
+
+    /**
+     * Skips the next term without decoding it.
+     */
+    public static void skip(ByteBuffer in) throws InvalidObjectException {
+        in.position(TermScanner.skip(in, in.position()));
+    }
+
+    private static String readText(ByteBuffer in, int length) throws InvalidObjectException {
+        return readText(in, length, UTF8);
+    }
+
+    private static String readText(ByteBuffer in, int length, Charset charset) throws InvalidObjectException {
+        require(in, length);
+
+        if (in.hasArray()) {
+            String text = new String(in.array(), in.arrayOffset() + in.position(), length, charset);
+            in.position(in.position() + length);
+            return text;
+        }
+
+        byte[] data = new byte[length];
+        in.get(data);
+        return new String(data, charset);
+    }
+
+    private static int readLength(ByteBuffer in) throws InvalidObjectException {
+        require(in, 4);
+        long length = in.getInt() & 0xffffffffL;
+        if (length > in.remaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+        return (int) length;
+    }
+
+    private static void require(ByteBuffer in, int bytes) throws InvalidObjectException {
+        if (in.remaining() < bytes) {
+            throw new InvalidObjectException("Truncated term");
+        }
+    }
+
+    private static InvalidObjectException unexpected(ByteBuffer in, String expected) {
+        return new InvalidObjectException("Expected " + expected + " at " + (in.position() - 1));
+    }
+}
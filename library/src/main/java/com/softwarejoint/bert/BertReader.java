@@ -0,0 +1,523 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pull parser over one encoded term. {@link #next()} steps through the term a token at a time
+ * and the value of the current token is read with the accessors, so nothing is allocated
+ * unless an accessor returning an object is called.
+ * <p>
+ * Containers report their size with START_TUPLE / START_LIST / START_MAP and are closed by the
+ * matching END token. The NIL tail of a proper list is folded into END_LIST; an improper tail
+ * is returned as the last element before END_LIST.
+ * <p>
+ * Only absolute reads are used, the position of the source buffer is left untouched. A reader
+ * is reused with {@link #reset(ByteBuffer)}. Distribution headers, COMPRESSED terms and atom
+ * cache references are not supported, use {@link BertDecoder} for those.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertReader implements DistributionHeader {
+
+    private static final int INITIAL_DEPTH = 16;
+
+    private static final String[] TOKEN_NAMES = {
+            "end of input", "tuple", "end of tuple", "list", "end of list", "map", "end of map",
+            "nil", "integer", "big integer", "float", "atom", "binary", "string"
+    };
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private boolean rootRead;
+
+    private byte[] frameTags = new byte[INITIAL_DEPTH];
+    private long[] frameRemaining = new long[INITIAL_DEPTH];
+    private int depth;
+
+    private @BertToken int token = BertToken.END_OF_INPUT;
+    private int size;
+    private int valueOffset;
+    private boolean latin1;
+    private long longValue;
+    private double doubleValue;
+    private int cursor;
+
+    public BertReader() {
+    }
+
+    public BertReader(byte[] data) throws InvalidObjectException {
+        reset(data);
+    }
+
+    public BertReader(ByteBuffer data) throws InvalidObjectException {
+        reset(data);
+    }
+
+    public BertReader reset(byte[] data) throws InvalidObjectException {
+        return reset(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Starts reading the term between position and limit of {@code data}, with or without MAGIC.
+     */
+    public BertReader reset(ByteBuffer data) throws InvalidObjectException {
+        buffer = (data.order() == ByteOrder.BIG_ENDIAN) ? data : data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        position = data.position();
+        limit = data.limit();
+        depth = 0;
+        rootRead = false;
+        token = BertToken.END_OF_INPUT;
+
+        if (position < limit && buffer.get(position) == MAGIC) position++;
+
+        if (position < limit) {
+            byte tag = buffer.get(position);
+            if (tag == DIST_HEADER || tag == COMPRESSED) {
+                throw new InvalidObjectException("Distribution headers and compressed terms need BertDecoder");
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Position in the source just after the last token read.
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Number of containers the current token is nested in, counting START tokens as inside.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    public @BertToken int token() {
+        return token;
+    }
+
+    public @BertToken int next() throws InvalidObjectException {
+        if (depth == 0) {
+            if (rootRead) return token = BertToken.END_OF_INPUT;
+            rootRead = true;
+            return token = readToken();
+        }
+
+        int top = depth - 1;
+        byte tag = frameTags[top];
+        long remaining = frameRemaining[top];
+
+        if (tag == LIST_EXT && remaining == 1) {
+            //only the tail is left
+            require(1);
+            if (buffer.get(position) == NIL_EXT) {
+                position++;
+                remaining = 0;
+            }
+        }
+
+        if (remaining == 0) {
+            depth--;
+            switch (tag) {
+                case LIST_EXT:
+                    return token = BertToken.END_LIST;
+                case MAP_EXT:
+                    return token = BertToken.END_MAP;
+                default:
+                    return token = BertToken.END_TUPLE;
+            }
+        }
+
+        frameRemaining[top] = remaining - 1;
+        return token = readToken();
+    }
+
+    /**
+     * Skips the rest of the container just started; does nothing for any other token.
+     */
+    public void skipValue() throws InvalidObjectException {
+        if (token != BertToken.START_TUPLE && token != BertToken.START_LIST && token != BertToken.START_MAP) return;
+
+        int target = depth - 1;
+        while (depth > target) {
+            next();
+        }
+    }
+
+    /**
+     * Skips the next term, including everything nested in it.
+     */
+    public void skip() throws InvalidObjectException {
+        next();
+        skipValue();
+    }
+
+    /**
+     * Elements of START_TUPLE and START_LIST, pairs of START_MAP and bytes of ATOM, BINARY,
+     * STRING and BIG_INTEGER.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int intValue() throws InvalidObjectException {
+        expect(BertToken.INTEGER);
+        if (longValue < Integer.MIN_VALUE || longValue > Integer.MAX_VALUE) {
+            throw new InvalidObjectException("Integer out of range " + longValue);
+        }
+        return (int) longValue;
+    }
+
+    public long longValue() throws InvalidObjectException {
+        expect(BertToken.INTEGER);
+        return longValue;
+    }
+
+    /**
+     * Value of a FLOAT or an INTEGER.
+     */
+    public double doubleValue() throws InvalidObjectException {
+        if (token == BertToken.INTEGER) return longValue;
+        expect(BertToken.FLOAT);
+        return doubleValue;
+    }
+
+    public boolean booleanValue() throws InvalidObjectException {
+        if (textEquals("true")) return true;
+        if (textEquals("false")) return false;
+        throw new InvalidObjectException("Expected boolean but got " + TOKEN_NAMES[token]);
+    }
+
+    public BigInteger bigIntegerValue() throws InvalidObjectException {
+        if (token == BertToken.INTEGER) return BigInteger.valueOf(longValue);
+        expect(BertToken.BIG_INTEGER);
+
+        byte[] magnitude = new byte[size];
+        for (int i = 0; i < size; i++) {
+            magnitude[size - 1 - i] = buffer.get(valueOffset + 1 + i);
+        }
+        return new BigInteger((buffer.get(valueOffset) == 0) ? 1 : -1, magnitude);
+    }
+
+    /**
+     * Compares the text of the current ATOM, BINARY or STRING with {@code text} without
+     * allocating; false for any other token.
+     */
+    public boolean textEquals(CharSequence text) {
+        if (!isText()) return false;
+
+        int end = valueOffset + size;
+        int index = 0;
+        cursor = valueOffset;
+
+        while (cursor < end) {
+            if (index >= text.length()) return false;
+
+            int codePoint = nextCodePoint(end);
+            if (codePoint != Character.codePointAt(text, index)) return false;
+            index += Character.charCount(codePoint);
+        }
+        return index == text.length();
+    }
+
+    /**
+     * Appends the text of the current ATOM, BINARY (as UTF-8) or STRING to {@code out}.
+     */
+    public StringBuilder appendText(StringBuilder out) throws InvalidObjectException {
+        if (!isText()) {
+            throw new InvalidObjectException("Expected text but got " + TOKEN_NAMES[token]);
+        }
+
+        int end = valueOffset + size;
+        cursor = valueOffset;
+        while (cursor < end) {
+            out.appendCodePoint(nextCodePoint(end));
+        }
+        return out;
+    }
+
+    public String stringValue() throws InvalidObjectException {
+        return appendText(new StringBuilder(size)).toString();
+    }
+
+    public byte[] binaryValue() throws InvalidObjectException {
+        expect(BertToken.BINARY);
+        byte[] data = new byte[size];
+        copyBinary(data, 0);
+        return data;
+    }
+
+    /**
+     * Read-only view of the current BINARY inside the source buffer.
+     */
+    public ByteBuffer binarySlice() throws InvalidObjectException {
+        expect(BertToken.BINARY);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(valueOffset + size).position(valueOffset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies as much of the current BINARY as fits into {@code target}.
+     *
+     * @return number of bytes copied
+     */
+    public int copyBinary(byte[] target, int offset) throws InvalidObjectException {
+        expect(BertToken.BINARY);
+        int count = Math.min(size, target.length - offset);
+        for (int i = 0; i < count; i++) {
+            target[offset + i] = buffer.get(valueOffset + i);
+        }
+        return count;
+    }
+
+    public int readInt() throws InvalidObjectException {
+        next();
+        return intValue();
+    }
+
+    public long readLong() throws InvalidObjectException {
+        next();
+        return longValue();
+    }
+
+    public double readDouble() throws InvalidObjectException {
+        next();
+        return doubleValue();
+    }
+
+    public boolean readBoolean() throws InvalidObjectException {
+        next();
+        return booleanValue();
+    }
+
+    /**
+     * Reads an atom and appends its text to {@code out}.
+     */
+    public StringBuilder readAtomInto(StringBuilder out) throws InvalidObjectException {
+        next();
+        expect(BertToken.ATOM);
+        return appendText(out);
+    }
+
+    /**
+     * Reads START_TUPLE and returns the arity.
+     */
+    public int readTuple() throws InvalidObjectException {
+        next();
+        expect(BertToken.START_TUPLE);
+        return size;
+    }
+
+    /**
+     * Reads START_LIST and returns the length; NIL reads as an empty list with no END_LIST.
+     */
+    public int readList() throws InvalidObjectException {
+        next();
+        if (token == BertToken.NIL) return 0;
+        expect(BertToken.START_LIST);
+        return size;
+    }
+
+    /**
+     * Reads START_MAP and returns the number of pairs.
+     */
+    public int readMap() throws InvalidObjectException {
+        next();
+        expect(BertToken.START_MAP);
+        return size;
+    }
+
+    /**
+     * Reads the END token of the container being read.
+     */
+    public void readEnd() throws InvalidObjectException {
+        next();
+        if (token != BertToken.END_TUPLE && token != BertToken.END_LIST && token != BertToken.END_MAP) {
+            throw new InvalidObjectException("Expected end of container but got " + TOKEN_NAMES[token]);
+        }
+    }
+
+    private @BertToken int readToken() throws InvalidObjectException {
+        require(1);
+        byte tag = buffer.get(position++);
+
+        switch (tag) {
+            case NIL_EXT:
+                size = 0;
+                return BertToken.NIL;
+            case SMALL_INTEGER_EXT:
+                require(1);
+                longValue = buffer.get(position++) & 0xff;
+                return BertToken.INTEGER;
+            case INTEGER_EXT:
+                require(4);
+                longValue = buffer.getInt(position);
+                position += 4;
+                return BertToken.INTEGER;
+            case SMALL_BIG_EXT:
+                require(1);
+                return readBig(buffer.get(position++) & 0xff);
+            case LARGE_BIG_EXT:
+                return readBig(readLength());
+            case NEW_FLOAT_EXT:
+                require(8);
+                doubleValue = buffer.getDouble(position);
+                position += 8;
+                return BertToken.FLOAT;
+            case FLOAT_EXT:
+                require(FLOAT_LENGTH);
+                doubleValue = NumberCodec.parseOldFloat(buffer, position);
+                position += FLOAT_LENGTH;
+                return BertToken.FLOAT;
+            case SMALL_ATOM_EXT:
+                require(1);
+                return readPayload(BertToken.ATOM, buffer.get(position++) & 0xff, true);
+            case ATOM_EXT:
+                require(2);
+                int atomLength = buffer.getShort(position) & 0xffff;
+                position += 2;
+                return readPayload(BertToken.ATOM, atomLength, true);
+            case SMALL_ATOM_UTF8_EXT:
+                require(1);
+                return readPayload(BertToken.ATOM, buffer.get(position++) & 0xff, false);
+            case ATOM_UTF8_EXT:
+                require(2);
+                int utf8Length = buffer.getShort(position) & 0xffff;
+                position += 2;
+                return readPayload(BertToken.ATOM, utf8Length, false);
+            case STRING_EXT:
+                require(2);
+                int stringLength = buffer.getShort(position) & 0xffff;
+                position += 2;
+                return readPayload(BertToken.STRING, stringLength, true);
+            case BINARY_EXT:
+                return readPayload(BertToken.BINARY, readLength(), false);
+            case SMALL_TUPLE_EXT:
+                require(1);
+                int arity = buffer.get(position++) & 0xff;
+                return start(tag, arity, arity, BertToken.START_TUPLE);
+            case LARGE_TUPLE_EXT:
+                int largeArity = readLength();
+                return start(tag, largeArity, largeArity, BertToken.START_TUPLE);
+            case LIST_EXT:
+                int length = readLength();
+                return start(tag, length, length + 1L, BertToken.START_LIST);
+            case MAP_EXT:
+                int pairs = readLength();
+                return start(tag, pairs, 2L * pairs, BertToken.START_MAP);
+            case ATOM_CACHE_REF:
+                throw new InvalidObjectException("Atom cache references need BertDecoder");
+            default:
+                throw new InvalidObjectException("Invalid Type " + tag);
+        }
+    }
+
+    private @BertToken int readBig(int byteCount) throws InvalidObjectException {
+        require(1L + byteCount);
+        valueOffset = position;
+        size = byteCount;
+        position += 1 + byteCount;
+
+        if (byteCount <= 8) {
+            long magnitude = 0;
+            for (int i = 0; i < byteCount; i++) {
+                magnitude |= (long) (buffer.get(valueOffset + 1 + i) & 0xff) << (8 * i);
+            }
+
+            boolean negative = buffer.get(valueOffset) != 0;
+            if (magnitude >= 0 || (negative && magnitude == Long.MIN_VALUE)) {
+                longValue = negative ? -magnitude : magnitude;
+                return BertToken.INTEGER;
+            }
+        }
+        return BertToken.BIG_INTEGER;
+    }
+
+    private @BertToken int readPayload(@BertToken int type, int length, boolean latin1) throws InvalidObjectException {
+        require(length);
+        this.latin1 = latin1;
+        valueOffset = position;
+        size = length;
+        position += length;
+        return type;
+    }
+
+    private @BertToken int start(byte tag, int count, long children, @BertToken int type)
+            throws InvalidObjectException {
+        //every child needs at least its tag byte
+        require(children);
+
+        if (depth == frameTags.length) {
+            frameTags = Arrays.copyOf(frameTags, depth * 2);
+            frameRemaining = Arrays.copyOf(frameRemaining, depth * 2);
+        }
+
+        frameTags[depth] = tag;
+        frameRemaining[depth] = children;
+        depth++;
+        size = count;
+        return type;
+    }
+
+    private boolean isText() {
+        return token == BertToken.ATOM || token == BertToken.BINARY || token == BertToken.STRING;
+    }
+
+    private int nextCodePoint(int end) {
+        int b = buffer.get(cursor++) & 0xff;
+        if (b < 0x80 || latin1) return b;
+
+        int extra;
+        int codePoint;
+        if ((b & 0xe0) == 0xc0) {
+            extra = 1;
+            codePoint = b & 0x1f;
+        } else if ((b & 0xf0) == 0xe0) {
+            extra = 2;
+            codePoint = b & 0x0f;
+        } else if ((b & 0xf8) == 0xf0) {
+            extra = 3;
+            codePoint = b & 0x07;
+        } else {
+            return 0xfffd;
+        }
+
+        if (cursor + extra > end) {
+            cursor = end;
+            return 0xfffd;
+        }
+
+        for (int i = 0; i < extra; i++) {
+            codePoint = (codePoint << 6) | (buffer.get(cursor++) & 0x3f);
+        }
+        return codePoint;
+    }
+
+    private int readLength() throws InvalidObjectException {
+        require(4);
+        long length = buffer.getInt(position) & 0xffffffffL;
+        position += 4;
+        if (length > limit - position) {
+            throw new InvalidObjectException("Truncated term");
+        }
+        return (int) length;
+    }
+
+    private void require(long bytes) throws InvalidObjectException {
+        if (position + bytes > limit) {
+            throw new InvalidObjectException("Truncated term");
+        }
+    }
+
+    private void expect(@BertToken int expected) throws InvalidObjectException {
+        if (token != expected) {
+            throw new InvalidObjectException("Expected " + TOKEN_NAMES[expected] + " but got " + TOKEN_NAMES[token]);
+        }
+    }
+}
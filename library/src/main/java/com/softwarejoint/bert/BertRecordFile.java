@@ -0,0 +1,238 @@
+package com.softwarejoint.bert;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a file of records framed like {packet,4}: a 4 byte big-endian length followed by a
+ * term_to_binary term, as written by {@link BertEncoder#encodeBatch}. The file is memory
+ * mapped in windows, so it may exceed 2 GB, and records are returned as read-only views of the
+ * mapping without copying:
+ * <pre>
+ * try (BertRecordFile file = new BertRecordFile(dump)) {
+ *     ByteBuffer record;
+ *     while ((record = file.next()) != null) {
+ *         Object term = decoder.decode(record);
+ *     }
+ * }
+ * </pre>
+ * {@link #buildIndex()} locates every record up front; afterwards {@link #getRecord(int)} may
+ * be called from any number of threads, e.g. workers decoding with a shared
+ * {@link BertDecoderConfig}. {@link #next()} is for a single thread.
+ * <p>
+ * Mappings stay valid after {@link #close()} until the views are garbage collected.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertRecordFile implements Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+
+    private final Cursor cursor = new Cursor();
+
+    private ByteBuffer[] windows;
+    private long[] windowStarts;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] windowOf;
+    private int recordCount = -1;
+
+    public BertRecordFile(File path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize bytes mapped at once; a record longer than that gets its own window
+     */
+    public BertRecordFile(File path, int windowSize) throws IOException {
+        if (windowSize < 4) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The next record positioned between its first and last byte, or null at the end of file.
+     */
+    public ByteBuffer next() throws IOException {
+        return cursor.advance() ? cursor.record() : null;
+    }
+
+    /**
+     * Offset of the length prefix of the record returned by the next {@link #next()}.
+     */
+    public long position() {
+        return cursor.position;
+    }
+
+    /**
+     * Continues {@link #next()} at {@code position}, which must be the start of a record.
+     */
+    public void seek(long position) {
+        if (position < 0 || position > size) {
+            throw new IllegalArgumentException("Invalid position " + position);
+        }
+        cursor.position = position;
+    }
+
+    /**
+     * Scans the length prefixes of all records, mapping the file once. Does not move
+     * {@link #next()}.
+     *
+     * @return number of records
+     * @throws InvalidObjectException if the last record is truncated
+     */
+    public synchronized int buildIndex() throws IOException {
+        if (recordCount >= 0) return recordCount;
+
+        Cursor scan = new Cursor();
+        ByteBuffer[] windows = new ByteBuffer[4];
+        long[] windowStarts = new long[4];
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int[] windowOf = new int[1024];
+        int windowCount = 0;
+        int count = 0;
+
+        while (scan.advance()) {
+            if (windowCount == 0 || windows[windowCount - 1] != scan.window) {
+                if (windowCount == windows.length) {
+                    windows = Arrays.copyOf(windows, windowCount * 2);
+                    windowStarts = Arrays.copyOf(windowStarts, windowCount * 2);
+                }
+                windows[windowCount] = scan.window;
+                windowStarts[windowCount] = scan.windowStart;
+                windowCount++;
+            }
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                windowOf = Arrays.copyOf(windowOf, count * 2);
+            }
+            offsets[count] = scan.windowStart + scan.offset;
+            lengths[count] = scan.length;
+            windowOf[count] = windowCount - 1;
+            count++;
+        }
+
+        this.windows = windows;
+        this.windowStarts = windowStarts;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.windowOf = windowOf;
+        recordCount = count;
+        return count;
+    }
+
+    /**
+     * Number of records, or -1 before {@link #buildIndex()}.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * File offset of the first byte of record {@code index}, after its length prefix.
+     */
+    public long getRecordOffset(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    /**
+     * Record {@code index} positioned between its first and last byte. Thread safe once
+     * {@link #buildIndex()} returned.
+     */
+    public ByteBuffer getRecord(int index) {
+        checkIndex(index);
+
+        int window = windowOf[index];
+        int start = (int) (offsets[index] - windowStarts[window]);
+        ByteBuffer record = windows[window].duplicate();
+        record.limit(start + lengths[index]);
+        record.position(start);
+        return record;
+    }
+
+    private void checkIndex(int index) {
+        if (recordCount < 0) {
+            throw new IllegalStateException("Call buildIndex() first");
+        }
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Walks the records front to back, remapping when the next one leaves the current window.
+     */
+    private final class Cursor {
+
+        long position;
+        ByteBuffer window;
+        long windowStart;
+        long windowEnd;
+
+        int offset;
+        int length;
+
+        boolean advance() throws IOException {
+            if (position >= size) return false;
+
+            if (size - position < 4) {
+                throw new InvalidObjectException("Truncated record at " + position);
+            }
+            if (position + 4 > windowEnd || position < windowStart) map(position, 4);
+
+            long recordLength = window.getInt((int) (position - windowStart)) & 0xffffffffL;
+            long end = position + 4 + recordLength;
+            if (recordLength > Integer.MAX_VALUE - 4 || end > size) {
+                throw new InvalidObjectException("Truncated record at " + position);
+            }
+            if (end > windowEnd) map(position, 4 + recordLength);
+
+            offset = (int) (position + 4 - windowStart);
+            length = (int) recordLength;
+            position = end;
+            return true;
+        }
+
+        ByteBuffer record() {
+            ByteBuffer record = window.duplicate();
+            record.limit(offset + length);
+            record.position(offset);
+            return record;
+        }
+
+        private void map(long start, long minLength) throws IOException {
+            long mapped = Math.min(size - start, Math.max(windowSize, minLength));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, mapped);
+            windowStart = start;
+            windowEnd = start + mapped;
+        }
+    }
+}
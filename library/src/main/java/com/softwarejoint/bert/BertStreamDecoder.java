@@ -0,0 +1,447 @@
+package com.softwarejoint.bert;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Push style decoder for back to back external format terms arriving in arbitrary
+ * chunks, e.g. from a non-blocking {@link java.nio.channels.SocketChannel}. Partially read
+ * lists, tuples and maps are kept on an explicit stack between calls to {@link #feed(ByteBuffer)}
+ * and each term is handed to the {@link Listener} once complete.
+ * <p>
+ * Conversion options and limits are taken from the {@link BertDecoder} supplied at construction;
+ * a term breaking a limit is rejected before the allocation it asks for.
+ * <p>
+ * COMPRESSED terms are inflated as their bytes arrive. Distribution headers and ATOM_CACHE_REF
+ * are resolved against the atom cache session of the decoder.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertStreamDecoder implements DistributionHeader {
+
+    public interface Listener {
+        void onTerm(Object term);
+    }
+
+    private static final int STEP_MAGIC = 0;
+    private static final int STEP_TAG = 1;
+    private static final int STEP_HEADER = 2;
+    private static final int STEP_PAYLOAD = 3;
+    private static final int STEP_DIST_HEADER = 4;
+    private static final int STEP_INFLATE = 5;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 8;
+
+    private final BertDecoder decoder;
+    private final Listener listener;
+    private final TermStack stack;
+
+    private int step = STEP_MAGIC;
+    private byte tag;
+    private int need;
+    //COMPRESSED and DIST_HEADER may only follow MAGIC
+    private boolean framing;
+
+    private byte[] scratch = new byte[64];
+    private byte[] reusable = scratch;
+    private int filled;
+
+    private ByteBuffer readBuffer;
+
+    private Inflater inflater;
+    private byte[] inflateInput;
+    private byte[] inflateOutput;
+    private BertDecoder.InflatedTerm inflatedTerm;
+    private BertStreamDecoder inflatedStream;
+    private long inflateSize;
+    private long inflated;
+
+    public BertStreamDecoder(BertDecoder decoder, Listener listener) {
+        this.decoder = decoder;
+        this.listener = listener;
+        this.stack = new TermStack(decoder);
+    }
+
+    /**
+     * True when no term is partially decoded.
+     */
+    public boolean isIdle() {
+        return step == STEP_MAGIC;
+    }
+
+    /**
+     * Drops any partially decoded term, e.g. after the connection was reset.
+     */
+    public void reset() {
+        stack.clear(0);
+        step = STEP_MAGIC;
+        framing = false;
+        filled = 0;
+        need = 0;
+        if (inflatedStream != null) inflatedStream.reset();
+    }
+
+    /**
+     * Expect a term without the MAGIC prefix next, as found inside a COMPRESSED term.
+     */
+    void beginTerm() {
+        reset();
+        step = STEP_TAG;
+    }
+
+    /**
+     * Reads whatever is available from {@code channel} and decodes it.
+     *
+     * @return bytes read, or -1 at end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (readBuffer == null) readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read > 0) {
+            readBuffer.flip();
+            feed(readBuffer);
+        }
+        return read;
+    }
+
+    /**
+     * Consumes all remaining bytes of {@code data}.
+     */
+    public void feed(ByteBuffer data) throws InvalidObjectException {
+        try {
+            while (data.hasRemaining()) {
+                switch (step) {
+                    case STEP_MAGIC:
+                        if (data.get() != MAGIC) {
+                            reset();
+                            throw new InvalidObjectException("Invalid Format");
+                        }
+                        decoder.beginStreamedTerm();
+                        step = STEP_TAG;
+                        framing = true;
+                        break;
+                    case STEP_TAG:
+                        tag = data.get();
+                        filled = 0;
+                        append(tag);
+                        onTag();
+                        break;
+                    case STEP_DIST_HEADER:
+                        if (copy(data)) onDistributionHeader();
+                        break;
+                    case STEP_INFLATE:
+                        inflate(data);
+                        break;
+                    case STEP_HEADER:
+                        if (copy(data)) onHeader();
+                        break;
+                    case STEP_PAYLOAD:
+                        if (copy(data)) completeScalar();
+                        break;
+                }
+            }
+        } catch (InvalidObjectException e) {
+            //the rest of a rejected term cannot be told apart from the next one
+            reset();
+            throw e;
+        }
+    }
+
+    private void onTag() throws InvalidObjectException {
+        boolean top = framing;
+        framing = false;
+
+        switch (tag) {
+            case DIST_HEADER:
+                if (!top) break;
+                expect(STEP_DIST_HEADER, 1);
+                return;
+            case COMPRESSED:
+                if (!top) break;
+                expect(STEP_HEADER, 4);
+                return;
+            case ATOM_CACHE_REF:
+                expect(STEP_PAYLOAD, 1);
+                return;
+            case NIL_EXT:
+                if (stack.isTail()) {
+                    complete(stack.pop());
+                } else {
+                    decoder.countTag(tag, stack.depth());
+                    complete(decoder.emptyList());
+                }
+                return;
+            case SMALL_INTEGER_EXT:
+                expect(STEP_PAYLOAD, 1);
+                return;
+            case INTEGER_EXT:
+                expect(STEP_PAYLOAD, 4);
+                return;
+            case FLOAT_EXT:
+                expect(STEP_PAYLOAD, FLOAT_LENGTH);
+                return;
+            case NEW_FLOAT_EXT:
+                expect(STEP_PAYLOAD, 8);
+                return;
+            case SMALL_BIG_EXT:
+            case SMALL_ATOM_EXT:
+            case SMALL_ATOM_UTF8_EXT:
+            case SMALL_TUPLE_EXT:
+                expect(STEP_HEADER, 1);
+                return;
+            case ATOM_EXT:
+            case ATOM_UTF8_EXT:
+            case STRING_EXT:
+                expect(STEP_HEADER, 2);
+                return;
+            case LARGE_BIG_EXT:
+            case BINARY_EXT:
+            case LIST_EXT:
+            case LARGE_TUPLE_EXT:
+            case MAP_EXT:
+                expect(STEP_HEADER, 4);
+                return;
+        }
+
+        reset();
+        throw new InvalidObjectException("Invalid Type " + tag);
+    }
+
+    private void onHeader() throws InvalidObjectException {
+        long length = readLength();
+
+        switch (tag) {
+            case SMALL_BIG_EXT:
+            case LARGE_BIG_EXT:
+                decoder.checkAllocation(length);
+                payload(length + 1);
+                return;
+            case STRING_EXT:
+            case BINARY_EXT:
+                decoder.checkAllocation(length);
+                payload(length);
+                return;
+            case SMALL_ATOM_EXT:
+            case ATOM_EXT:
+            case SMALL_ATOM_UTF8_EXT:
+            case ATOM_UTF8_EXT:
+                payload(length);
+                return;
+            case LIST_EXT:
+                push(TermStack.LIST, length);
+                return;
+            case SMALL_TUPLE_EXT:
+            case LARGE_TUPLE_EXT:
+                push(TermStack.TUPLE, length);
+                return;
+            case MAP_EXT:
+                push(TermStack.MAP, length * 2);
+                return;
+            case COMPRESSED:
+                beginInflate(length);
+        }
+    }
+
+    /**
+     * Reads the distribution header byte by byte until it is complete, as its size is only
+     * known from its contents.
+     */
+    private void onDistributionHeader() throws InvalidObjectException {
+        int missing = distributionHeaderMissing();
+        if (missing > 0) {
+            expect(STEP_DIST_HEADER, missing);
+            return;
+        }
+
+        decoder.decodeDistributionHeader(ByteBuffer.wrap(scratch, 1, filled - 1));
+        step = STEP_TAG;
+    }
+
+    /**
+     * @return bytes needed before more of the header buffered after its tag can be read,
+     * 0 when it is complete
+     */
+    private int distributionHeaderMissing() throws InvalidObjectException {
+        int refCount = scratch[1] & 0xff;
+        if (refCount == 0) return 0;
+
+        int flags = 2;
+        int position = flags + refCount / 2 + 1;
+        if (filled < position) return position - filled;
+
+        boolean longAtoms = (flagNibble(flags, refCount) & 1) != 0;
+        for (int i = 0; i < refCount; i++) {
+            //segment index
+            position++;
+            if ((flagNibble(flags, i) & 8) == 0) continue;
+
+            int lengthSize = longAtoms ? 2 : 1;
+            if (filled < position + lengthSize) return position + lengthSize - filled;
+
+            int atomLength = scratch[position] & 0xff;
+            if (longAtoms) atomLength = (atomLength << 8) | (scratch[position + 1] & 0xff);
+            position += lengthSize + atomLength;
+            decoder.checkAllocation(atomLength);
+        }
+        return Math.max(position - filled, 0);
+    }
+
+    private int flagNibble(int flags, int index) {
+        int b = scratch[flags + index / 2];
+        return ((index & 1) == 0) ? (b & 0x0f) : ((b >>> 4) & 0x0f);
+    }
+
+    private void beginInflate(long size) throws InvalidObjectException {
+        //only the parts are allocated, but a body inflating beyond the budget is rejected
+        decoder.checkAllocation(size);
+        decoder.countTag(tag, 0);
+
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflateOutput = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+            inflatedTerm = new BertDecoder.InflatedTerm();
+            inflatedStream = new BertStreamDecoder(decoder, inflatedTerm);
+        } else {
+            inflater.reset();
+        }
+
+        inflatedTerm.term = null;
+        inflatedTerm.done = false;
+        inflatedStream.beginTerm();
+        inflateSize = size;
+        inflated = 0;
+        step = STEP_INFLATE;
+    }
+
+    /**
+     * Inflates what {@code data} holds of the COMPRESSED body; bytes after its end are left
+     * for the next term.
+     */
+    private void inflate(ByteBuffer data) throws InvalidObjectException {
+        int count = data.remaining();
+        if (data.hasArray()) {
+            inflater.setInput(data.array(), data.arrayOffset() + data.position(), count);
+        } else {
+            if (inflateInput == null) inflateInput = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+            count = Math.min(count, inflateInput.length);
+            data.duplicate().get(inflateInput, 0, count);
+            inflater.setInput(inflateInput, 0, count);
+        }
+        data.position(data.position() + count);
+
+        try {
+            while (!inflater.finished()) {
+                int read = inflater.inflate(inflateOutput);
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        throw new InvalidObjectException("Invalid compressed term");
+                    }
+                    if (inflater.needsInput()) return;
+                    continue;
+                }
+
+                inflated += read;
+                if (inflated > inflateSize) {
+                    throw new InvalidObjectException("Compressed term larger than declared");
+                }
+                inflatedStream.feed(ByteBuffer.wrap(inflateOutput, 0, read));
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidObjectException("Invalid compressed term: " + e.getMessage());
+        }
+
+        data.position(data.position() - inflater.getRemaining());
+        if (inflated != inflateSize || !inflatedTerm.done) {
+            throw new InvalidObjectException("Invalid compressed term");
+        }
+
+        Object term = inflatedTerm.term;
+        inflatedTerm.term = null;
+        step = STEP_MAGIC;
+        listener.onTerm(term);
+    }
+
+    private void payload(long length) throws InvalidObjectException {
+        if (filled + length > Integer.MAX_VALUE - 8) {
+            reset();
+            throw new InvalidObjectException("Max byte array size exceeded");
+        }
+
+        if (tag == BINARY_EXT) {
+            //binaries may be sliced by the decoder, never share the reusable array with them
+            scratch = new byte[filled + (int) length];
+            System.arraycopy(reusable, 0, scratch, 0, filled);
+        }
+
+        if (length == 0) {
+            completeScalar();
+            return;
+        }
+
+        expect(STEP_PAYLOAD, (int) length);
+    }
+
+    private void completeScalar() throws InvalidObjectException {
+        Object value = decoder.decodeNested(ByteBuffer.wrap(scratch, 0, filled));
+        scratch = reusable;
+        complete(value);
+    }
+
+    private void push(int type, long children) throws InvalidObjectException {
+        int depth = stack.depth() + 1;
+        decoder.checkNesting(depth, children);
+        decoder.countTag(tag, depth);
+
+        if (stack.push(type, children)) {
+            complete(stack.pop());
+            return;
+        }
+        step = STEP_TAG;
+    }
+
+    private void complete(Object value) {
+        Object term = stack.complete(value, 0);
+        if (term == TermStack.PENDING) {
+            step = STEP_TAG;
+            return;
+        }
+
+        step = STEP_MAGIC;
+        listener.onTerm(term);
+    }
+
+    private void expect(int nextStep, int bytes) {
+        step = nextStep;
+        need = bytes;
+        if (scratch.length < filled + bytes) {
+            byte[] grown = new byte[Math.max(filled + bytes, scratch.length * 2)];
+            System.arraycopy(scratch, 0, grown, 0, filled);
+            scratch = reusable = grown;
+        }
+    }
+
+    private boolean copy(ByteBuffer data) {
+        int count = Math.min(need, data.remaining());
+        data.get(scratch, filled, count);
+        filled += count;
+        need -= count;
+        return need == 0;
+    }
+
+    private void append(byte b) {
+        scratch[filled++] = b;
+    }
+
+    private long readLength() {
+        long length = 0;
+        for (int i = 1; i < filled; i++) {
+            length = (length << 8) | (scratch[i] & 0xff);
+        }
+        return length;
+    }
+}
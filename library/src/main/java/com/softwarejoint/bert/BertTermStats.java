@@ -0,0 +1,92 @@
+package com.softwarejoint.bert;
+
+/**
+ * What one top level term cost, handed to a {@link BertMetricsListener}. The instance is reused
+ * by its encoder or decoder and only valid during the callback.
+ * <p>
+ * Tags are counted per term tag such as {@link DistributionHeader#SMALL_TUPLE_EXT}; framing
+ * (MAGIC, distribution header, COMPRESSED) is not counted, nor are the members of values a
+ * {@link BertCodec} writes or reads itself, spliced {@link PreEncodedTerm}s and the elements of
+ * lists decoded as primitive arrays.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertTermStats {
+
+    private final int[] tagCounts = new int[256];
+    private final byte[] tags = new byte[256];
+    private int tagKinds;
+
+    private int depth;
+    private int maxDepth;
+
+    int bytes;
+    long nanos;
+
+    /**
+     * Bytes on the wire, including MAGIC and any header.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Deepest nesting of tuples, lists and maps; 0 for a plain value.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getTagCount(byte tag) {
+        return tagCounts[tag & 0xff];
+    }
+
+    /**
+     * Number of distinct tags seen, see {@link #getTag(int)}.
+     */
+    public int getTagKinds() {
+        return tagKinds;
+    }
+
+    public byte getTag(int index) {
+        return tags[index];
+    }
+
+    void begin() {
+        for (int i = 0; i < tagKinds; i++) {
+            tagCounts[tags[i] & 0xff] = 0;
+        }
+        tagKinds = 0;
+        depth = 0;
+        maxDepth = 0;
+        bytes = 0;
+        nanos = System.nanoTime();
+    }
+
+    void end(int bytes) {
+        this.bytes = bytes;
+        nanos = System.nanoTime() - nanos;
+    }
+
+    void tag(byte tag) {
+        if (tagCounts[tag & 0xff]++ == 0) tags[tagKinds++] = tag;
+    }
+
+    void enter() {
+        if (++depth > maxDepth) maxDepth = depth;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    /**
+     * For readers that know the depth instead of entering and leaving, e.g. the stream decoder.
+     */
+    void reachDepth(int depth) {
+        if (depth > maxDepth) maxDepth = depth;
+    }
+}
@@ -0,0 +1,44 @@
+package com.softwarejoint.bert;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import static com.softwarejoint.bert.BertToken.ATOM;
+import static com.softwarejoint.bert.BertToken.BIG_INTEGER;
+import static com.softwarejoint.bert.BertToken.BINARY;
+import static com.softwarejoint.bert.BertToken.END_LIST;
+import static com.softwarejoint.bert.BertToken.END_MAP;
+import static com.softwarejoint.bert.BertToken.END_OF_INPUT;
+import static com.softwarejoint.bert.BertToken.END_TUPLE;
+import static com.softwarejoint.bert.BertToken.FLOAT;
+import static com.softwarejoint.bert.BertToken.INTEGER;
+import static com.softwarejoint.bert.BertToken.NIL;
+import static com.softwarejoint.bert.BertToken.START_LIST;
+import static com.softwarejoint.bert.BertToken.START_MAP;
+import static com.softwarejoint.bert.BertToken.START_TUPLE;
+import static com.softwarejoint.bert.BertToken.STRING;
+
+/**
+ * Tokens returned by {@link BertReader#next()}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({END_OF_INPUT, START_TUPLE, END_TUPLE, START_LIST, END_LIST, START_MAP, END_MAP,
+        NIL, INTEGER, BIG_INTEGER, FLOAT, ATOM, BINARY, STRING})
+public @interface BertToken {
+    int END_OF_INPUT = 0;
+    int START_TUPLE = 1;
+    int END_TUPLE = 2;
+    int START_LIST = 3;
+    int END_LIST = 4;
+    int START_MAP = 5;
+    int END_MAP = 6;
+    int NIL = 7;
+    int INTEGER = 8;            //DND: fits in a long
+    int BIG_INTEGER = 9;
+    int FLOAT = 10;
+    int ATOM = 11;
+    int BINARY = 12;
+    int STRING = 13;            //DND: STRING_EXT, bytes are Latin-1
+}
@@ -7,6 +7,16 @@ import java.util.ArrayList;
  */
 public class BertTuple extends ArrayList<Object> {
 
+    public BertTuple() {
+    }
+
+    /**
+     * Room for exactly {@code arity} elements, as used by the decoder.
+     */
+    public BertTuple(int arity) {
+        super(arity);
+    }
+
     public boolean isKV() {
         return size() == 2;
     }
@@ -0,0 +1,176 @@
+package com.softwarejoint.bert;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves how values are encoded, once per class. Built in types map to the encoder's own
+ * writers and custom types to a registered {@link BertCodec}; the result is cached per class so
+ * dispatch is a single map lookup however many types are known.
+ * <p>
+ * For decoding a {@link BertCodec} may be registered per term tag (e.g. {@code SMALL_TUPLE_EXT})
+ * and is then handed every term with that tag, positioned at the tag byte. Such a codec must not
+ * decode its own term through {@link BertDecoder#decodeValue(ByteBuffer)}.
+ * <p>
+ * Registries are thread safe. Encoders and decoders use {@link #shared()} unless given another.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertTypeRegistry {
+
+    static final int BYTE = 1;
+    static final int SHORT = 2;
+    static final int INTEGER = 3;
+    static final int FLOAT = 4;
+    static final int DOUBLE = 5;
+    static final int LONG = 6;
+    static final int BIG_INTEGER = 7;
+    static final int BOOLEAN = 8;
+    static final int ATOM = 9;
+    static final int STRING = 10;
+    static final int BINARY = 11;
+    static final int BYTE_BUFFER = 12;
+    static final int TUPLE = 13;
+    static final int LIST = 14;
+    static final int MAP = 15;
+    static final int ARRAY = 16;
+    static final int PRE_ENCODED = 17;
+    static final int CODEC = 18;
+    static final int UNSUPPORTED = 19;
+
+    private static final BertTypeRegistry SHARED = new BertTypeRegistry();
+
+    private final Map<Class<?>, BertCodec<?>> codecs = new LinkedHashMap<>();
+    private final ConcurrentHashMap<Class<?>, Handler> handlers = new ConcurrentHashMap<>();
+    private volatile BertCodec<?>[] tagDecoders;
+
+    public static BertTypeRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Encode instances of {@code type} and its subclasses with {@code codec}. A codec registered
+     * for the exact class wins over the built in types, which win over codecs of supertypes.
+     */
+    public synchronized <T> BertTypeRegistry register(Class<T> type, BertCodec<? super T> codec) {
+        if (type == null || codec == null) {
+            throw new IllegalArgumentException("Type and codec cannot be null");
+        }
+
+        codecs.put(type, codec);
+        handlers.clear();
+        return this;
+    }
+
+    public synchronized BertTypeRegistry unregister(Class<?> type) {
+        codecs.remove(type);
+        handlers.clear();
+        return this;
+    }
+
+    /**
+     * Decode every term starting with {@code tag} with {@code codec}; null restores the default.
+     */
+    public synchronized BertTypeRegistry registerDecoder(byte tag, BertCodec<?> codec) {
+        BertCodec<?>[] decoders = (tagDecoders != null) ? tagDecoders.clone() : new BertCodec<?>[256];
+        decoders[tag & 0xff] = codec;
+
+        boolean empty = true;
+        for (BertCodec<?> decoder : decoders) {
+            empty = empty && decoder == null;
+        }
+        tagDecoders = empty ? null : decoders;
+        return this;
+    }
+
+    /**
+     * Codecs indexed by tag, or null when none is registered.
+     */
+    BertCodec<?>[] tagDecoders() {
+        return tagDecoders;
+    }
+
+    Handler handlerFor(Class<?> type) {
+        Handler handler = handlers.get(type);
+        return (handler != null) ? handler : resolve(type);
+    }
+
+    private synchronized Handler resolve(Class<?> type) {
+        //cached under the same lock as register so a stale handler never outlives it
+        Handler handler = handlers.get(type);
+        if (handler != null) return handler;
+
+        BertCodec<?> codec = codecs.get(type);
+        int kind = (codec != null) ? CODEC : builtInKind(type);
+        if (kind == UNSUPPORTED) {
+            codec = findCodec(type);
+            if (codec != null) kind = CODEC;
+        }
+
+        handler = new Handler(kind, codec);
+        handlers.put(type, handler);
+        return handler;
+    }
+
+    private BertCodec<?> findCodec(Class<?> type) {
+        if (codecs.isEmpty()) return null;
+
+        //superclasses first, then the interfaces of each level
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            BertCodec<?> codec = codecs.get(c);
+            if (codec != null) return codec;
+        }
+
+        List<Class<?>> pending = new ArrayList<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            pending.add(c);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            for (Class<?> face : pending.get(i).getInterfaces()) {
+                BertCodec<?> codec = codecs.get(face);
+                if (codec != null) return codec;
+                pending.add(face);
+            }
+        }
+        return null;
+    }
+
+    private static int builtInKind(Class<?> type) {
+        //same precedence as the former instanceof chain, e.g. BertTuple before List
+        if (type == Byte.class) return BYTE;
+        if (type == Short.class) return SHORT;
+        if (type == Integer.class) return INTEGER;
+        if (type == Float.class) return FLOAT;
+        if (type == Double.class) return DOUBLE;
+        if (type == Long.class) return LONG;
+        if (BigInteger.class.isAssignableFrom(type)) return BIG_INTEGER;
+        if (type == Boolean.class) return BOOLEAN;
+        if (BertAtom.class.isAssignableFrom(type)) return ATOM;
+        if (type == String.class) return STRING;
+        if (type == byte[].class) return BINARY;
+        if (ByteBuffer.class.isAssignableFrom(type)) return BYTE_BUFFER;
+        if (BertTuple.class.isAssignableFrom(type)) return TUPLE;
+        if (List.class.isAssignableFrom(type)) return LIST;
+        if (Map.class.isAssignableFrom(type)) return MAP;
+        if (type.isArray()) return ARRAY;
+        if (type == PreEncodedTerm.class) return PRE_ENCODED;
+        return UNSUPPORTED;
+    }
+
+    static final class Handler {
+
+        final int kind;
+        //only handed values of the class it was resolved for, which the codec accepts
+        final BertCodec<Object> codec;
+
+        @SuppressWarnings("unchecked")
+        Handler(int kind, BertCodec<?> codec) {
+            this.kind = kind;
+            this.codec = (BertCodec<Object>) codec;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.softwarejoint.bert;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes terms straight into a {@link BertOutput} without building an object graph first,
+ * e.g. {@code {reply, 42, [<<"a">>, <<"b">>]}}:
+ * <pre>
+ * writer.beginTuple(3).writeAtom(REPLY).writeInt(42)
+ *       .beginList().writeBinary("a").writeBinary("b").endList();
+ * </pre>
+ * Tuples, lists and maps begun with a size close themselves after that many elements (pairs
+ * for maps). {@link #beginList()} and {@link #beginMap()} leave the size open; it is filled in
+ * by {@link #endList()} / {@link #endMap()}.
+ * <p>
+ * Each top level term starts with MAGIC unless disabled with {@link #setWriteMagic(boolean)}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BertWriter implements DistributionHeader {
+
+    private static final int INITIAL_DEPTH = 16;
+    private static final int DEFERRED = -1;
+
+    private final BertOutput output;
+    private BertEncoder encoder;
+    private boolean writeMagic = true;
+
+    private byte[] frameTags = new byte[INITIAL_DEPTH];
+    private int[] frameExpected = new int[INITIAL_DEPTH];
+    private int[] frameWritten = new int[INITIAL_DEPTH];
+    private int[] frameSizeOffsets = new int[INITIAL_DEPTH];
+    private int depth;
+
+    public BertWriter() {
+        this(new BertOutput(BufferPool.shared()));
+    }
+
+    public BertWriter(BufferPool pool) {
+        this(new BertOutput(pool));
+    }
+
+    public BertWriter(BertOutput output) {
+        this.output = output;
+    }
+
+    public BertWriter setWriteMagic(boolean enabled) {
+        writeMagic = enabled;
+        return this;
+    }
+
+    /**
+     * Encoder used by {@link #writeValue(Object)}; a default one is created when not set.
+     */
+    public BertWriter setEncoder(BertEncoder encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
+    public BertOutput getOutput() {
+        return output;
+    }
+
+    /**
+     * True when no container is left open.
+     */
+    public boolean isComplete() {
+        return depth == 0;
+    }
+
+    public byte[] toByteArray() {
+        checkComplete();
+        return output.toByteArray();
+    }
+
+    /**
+     * Discards everything written, including open containers, and returns pooled chunks.
+     */
+    public void reset() {
+        output.reset();
+        depth = 0;
+    }
+
+    public BertWriter beginTuple(int arity) {
+        checkSize(arity);
+        beginValue();
+        BertPrimitives.writeTupleHeader(output, arity);
+        return open(SMALL_TUPLE_EXT, arity, 0);
+    }
+
+    public BertWriter beginList(int length) {
+        checkSize(length);
+        beginValue();
+
+        if (length == 0) {
+            BertPrimitives.writeNil(output);
+            return endValue();
+        }
+
+        BertPrimitives.writeListHeader(output, length);
+        return open(LIST_EXT, length, 0);
+    }
+
+    /**
+     * Starts a list whose length is counted until {@link #endList()}.
+     */
+    public BertWriter beginList() {
+        beginValue();
+        return openDeferred(LIST_EXT);
+    }
+
+    public BertWriter endList() {
+        int count = closeDeferred(LIST_EXT);
+        output.putInt(frameSizeOffsets[depth], count);
+        BertPrimitives.writeNil(output);
+        return endValue();
+    }
+
+    public BertWriter beginMap(int pairs) {
+        checkSize(pairs);
+        beginValue();
+        BertPrimitives.writeMapHeader(output, pairs);
+        return open(MAP_EXT, 2 * pairs, 0);
+    }
+
+    /**
+     * Starts a map whose size is counted until {@link #endMap()}; write keys and values in turn.
+     */
+    public BertWriter beginMap() {
+        beginValue();
+        return openDeferred(MAP_EXT);
+    }
+
+    public BertWriter endMap() {
+        int count = closeDeferred(MAP_EXT);
+        if ((count & 1) != 0) {
+            depth++;
+            throw new IllegalStateException("Map has a key without a value");
+        }
+
+        output.putInt(frameSizeOffsets[depth], count / 2);
+        return endValue();
+    }
+
+    public BertWriter writeNil() {
+        beginValue();
+        BertPrimitives.writeNil(output);
+        return endValue();
+    }
+
+    public BertWriter writeInt(int i) {
+        beginValue();
+        BertPrimitives.writeInt(output, i);
+        return endValue();
+    }
+
+    public BertWriter writeLong(long l) {
+        beginValue();
+        BertPrimitives.writeLong(output, l);
+        return endValue();
+    }
+
+    public BertWriter writeDouble(double d) {
+        beginValue();
+        BertPrimitives.writeDouble(output, d);
+        return endValue();
+    }
+
+    public BertWriter writeBoolean(boolean b) {
+        beginValue();
+        BertPrimitives.writeBoolean(output, b);
+        return endValue();
+    }
+
+    public BertWriter writeAtom(BertAtom atom) {
+        beginValue();
+        BertPrimitives.writeAtom(output, atom);
+        return endValue();
+    }
+
+    public BertWriter writeBinary(byte[] data) {
+        return writeBinary(data, 0, data.length);
+    }
+
+    public BertWriter writeBinary(byte[] data, int offset, int length) {
+        beginValue();
+        output.ensure(5);
+        output.put(BINARY_EXT);
+        output.putInt(length);
+        output.put(data, offset, length);
+        return endValue();
+    }
+
+    /**
+     * Writes the remaining bytes of {@code data} without changing its position.
+     */
+    public BertWriter writeBinary(ByteBuffer data) {
+        beginValue();
+        output.ensure(5);
+        output.put(BINARY_EXT);
+        output.putInt(data.remaining());
+        output.put(data);
+        return endValue();
+    }
+
+    /**
+     * Writes {@code s} as a UTF-8 binary.
+     */
+    public BertWriter writeBinary(String s) {
+        beginValue();
+        BertPrimitives.writeBinary(output, s);
+        return endValue();
+    }
+
+    /**
+     * Writes any value the encoder supports, e.g. a nested Map built elsewhere.
+     */
+    public BertWriter writeValue(Object value) {
+        if (encoder == null) encoder = new BertEncoder();
+
+        beginValue();
+        encoder.encodeValue(value, output);
+        return endValue();
+    }
+
+    private void beginValue() {
+        if (depth == 0 && writeMagic) {
+            output.put(MAGIC);
+        }
+    }
+
+    /**
+     * Counts a finished value against the open container and closes every container
+     * that is now full.
+     */
+    private BertWriter endValue() {
+        while (depth > 0) {
+            int top = depth - 1;
+            int written = ++frameWritten[top];
+            int expected = frameExpected[top];
+            if (expected == DEFERRED || written < expected) break;
+
+            if (frameTags[top] == LIST_EXT) {
+                BertPrimitives.writeNil(output);
+            }
+            depth--;
+        }
+        return this;
+    }
+
+    private BertWriter open(byte tag, int expected, int sizeOffset) {
+        if (expected == 0) return endValue();
+
+        if (depth == frameTags.length) {
+            frameTags = Arrays.copyOf(frameTags, depth * 2);
+            frameExpected = Arrays.copyOf(frameExpected, depth * 2);
+            frameWritten = Arrays.copyOf(frameWritten, depth * 2);
+            frameSizeOffsets = Arrays.copyOf(frameSizeOffsets, depth * 2);
+        }
+
+        frameTags[depth] = tag;
+        frameExpected[depth] = expected;
+        frameWritten[depth] = 0;
+        frameSizeOffsets[depth] = sizeOffset;
+        depth++;
+        return this;
+    }
+
+    private BertWriter openDeferred(byte tag) {
+        //tag and size in one chunk so the size can be patched in place
+        output.ensure(5);
+        output.put(tag);
+        int sizeOffset = output.size();
+        output.putInt(0);
+        return open(tag, DEFERRED, sizeOffset);
+    }
+
+    /**
+     * Pops the innermost container, which must be a deferred {@code tag}.
+     *
+     * @return number of elements written into it
+     */
+    private int closeDeferred(byte tag) {
+        if (depth == 0 || frameTags[depth - 1] != tag || frameExpected[depth - 1] != DEFERRED) {
+            throw new IllegalStateException("No open " + (tag == LIST_EXT ? "list" : "map") + " to end");
+        }
+
+        depth--;
+        return frameWritten[depth];
+    }
+
+    private void checkComplete() {
+        if (depth != 0) {
+            throw new IllegalStateException(depth + " containers are still open");
+        }
+    }
+
+    private static void checkSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative");
+        }
+    }
+}
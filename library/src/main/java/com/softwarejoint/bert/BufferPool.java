@@ -0,0 +1,59 @@
+package com.softwarejoint.bert;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of fixed size heap chunks used by {@link BertOutput} to grow on demand.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class BufferPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 8;      //8kb per chunk
+    public static final int DEFAULT_MAX_POOLED = 256;           //2mb retained at most
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int chunkSize;
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int chunkSize, int maxPooled) {
+        if (chunkSize < 64) {
+            throw new IllegalArgumentException("Chunk size must be at least 64 bytes");
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooled = Math.max(maxPooled, 0);
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer chunk = chunks.poll();
+        if (chunk == null) return ByteBuffer.allocate(chunkSize);
+
+        pooled.decrementAndGet();
+        chunk.clear();
+        return chunk;
+    }
+
+    public void release(ByteBuffer chunk) {
+        if (chunk == null || chunk.capacity() != chunkSize || chunk.isDirect()) return;
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        chunks.offer(chunk);
+    }
+}
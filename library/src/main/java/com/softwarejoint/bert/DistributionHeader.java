@@ -20,6 +20,8 @@ public interface DistributionHeader {
 
     byte ATOM_EXT = (byte) 100;                 //DND: max len: 255
     byte SMALL_ATOM_EXT = (byte) 115;
+    byte ATOM_UTF8_EXT = (byte) 118;            //DND: 2 byte length, UTF-8 text
+    byte SMALL_ATOM_UTF8_EXT = (byte) 119;
 
     int STRING_EXT_MAX_VAL = 65535;
     byte STRING_EXT = (byte) 107;               //DND: max size: 65535
@@ -31,4 +33,12 @@ public interface DistributionHeader {
     byte LARGE_TUPLE_EXT = (byte) 105;
 
     byte MAP_EXT = (byte) 116;
+
+    byte COMPRESSED = (byte) 80;                    //DND: followed by uncompressed size and zlib data
+
+    byte DIST_HEADER = (byte) 68;
+    byte ATOM_CACHE_REF = (byte) 82;                //DND: index into the refs of the header
+
+    int ATOM_CACHE_SIZE = 2048;                     //DND: 8 segments of 256 entries
+    int ATOM_CACHE_MAX_REFS = 255;
 }
@@ -0,0 +1,188 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only view over an encoded term. Nothing is decoded up front: the children of a
+ * tuple, list or map are located with one skipping pass the first time one of them is
+ * accessed, and values are only built by {@link #decode()}.
+ * <p>
+ * The view shares memory with the source buffer, which must stay unchanged while in use.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class LazyTerm implements DistributionHeader {
+
+    private final BertDecoder decoder;
+    private final ByteBuffer buffer;
+    private final int offset;
+    private int end;
+
+    private int[] children;
+
+    LazyTerm(BertDecoder decoder, ByteBuffer buffer, int offset, int end) {
+        this.decoder = decoder;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    /**
+     * Tag of this term, one of the {@link DistributionHeader} constants.
+     */
+    public byte type() {
+        return buffer.get(offset);
+    }
+
+    public boolean isTuple() {
+        byte type = type();
+        return type == SMALL_TUPLE_EXT || type == LARGE_TUPLE_EXT;
+    }
+
+    public boolean isList() {
+        byte type = type();
+        return type == LIST_EXT || type == NIL_EXT || type == STRING_EXT;
+    }
+
+    public boolean isMap() {
+        return type() == MAP_EXT;
+    }
+
+    /**
+     * Arity of a tuple, number of elements of a list, number of pairs of a map and
+     * byte length of a binary or string; 0 for anything else.
+     */
+    public int size() {
+        switch (type()) {
+            case BINARY_EXT:
+                return (int) TermScanner.u32(buffer, offset + 1);
+            case STRING_EXT:
+                return TermScanner.u16(buffer, offset + 1);
+            default:
+                return (int) TermScanner.arity(buffer, offset);
+        }
+    }
+
+    /**
+     * Number of bytes this term takes in its encoded form.
+     */
+    public int encodedSize() throws InvalidObjectException {
+        return end() - offset;
+    }
+
+    /**
+     * The encoded bytes of this term, e.g. to forward them untouched.
+     */
+    public ByteBuffer raw() throws InvalidObjectException {
+        ByteBuffer raw = buffer.duplicate();
+        raw.limit(end());
+        raw.position(offset);
+        return raw.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Element {@code index} of a tuple or list.
+     */
+    public LazyTerm get(int index) throws InvalidObjectException {
+        if (!isTuple() && type() != LIST_EXT) {
+            throw new InvalidObjectException("Not a tuple or list");
+        }
+        return child(index);
+    }
+
+    /**
+     * Key of pair {@code index} of a map.
+     */
+    public LazyTerm key(int index) throws InvalidObjectException {
+        requireMap();
+        return child(index * 2);
+    }
+
+    /**
+     * Value of pair {@code index} of a map.
+     */
+    public LazyTerm value(int index) throws InvalidObjectException {
+        requireMap();
+        return child(index * 2 + 1);
+    }
+
+    /**
+     * Value stored under {@code key} in a map, or null. Only the keys are decoded.
+     */
+    public LazyTerm get(Object key) throws InvalidObjectException {
+        requireMap();
+
+        int pairs = size();
+        for (int i = 0; i < pairs; i++) {
+            if (keyEquals(key, key(i).decode())) return value(i);
+        }
+        return null;
+    }
+
+    /**
+     * Builds the value of this term with the options of the decoder that created the view.
+     */
+    public Object decode() throws InvalidObjectException {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end());
+        view.position(offset);
+        return decoder.decodeTerm(view);
+    }
+
+    private int end() throws InvalidObjectException {
+        if (end < 0) end = TermScanner.skip(buffer, offset);
+        return end;
+    }
+
+    private void requireMap() throws InvalidObjectException {
+        if (!isMap()) {
+            throw new InvalidObjectException("Not a map");
+        }
+    }
+
+    private LazyTerm child(int index) throws InvalidObjectException {
+        int[] children = index();
+        if (index < 0 || index >= children.length) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + children.length);
+        }
+
+        int position = children[index];
+        int next = (index + 1 < children.length) ? children[index + 1] : -1;
+        return new LazyTerm(decoder, buffer, position, next);
+    }
+
+    private int[] index() throws InvalidObjectException {
+        if (children != null) return children;
+
+        long count = TermScanner.arity(buffer, offset);
+        if (type() == MAP_EXT) count *= 2;
+
+        int position = TermScanner.firstChild(buffer, offset);
+        if (count > buffer.limit() - position) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        int[] index = new int[(int) count];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = position;
+            position = TermScanner.skip(buffer, position);
+        }
+
+        //a list ends with its tail, usually NIL_EXT
+        if (type() == LIST_EXT) position = TermScanner.skip(buffer, position);
+
+        end = position;
+        children = index;
+        return index;
+    }
+
+    static boolean keyEquals(Object wanted, Object key) {
+        if (wanted == key) return true;
+        if (wanted == null || key == null) return false;
+        if (wanted instanceof byte[] && key instanceof byte[]) {
+            return Arrays.equals((byte[]) wanted, (byte[]) key);
+        }
+        return wanted.equals(key);
+    }
+}
@@ -0,0 +1,342 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+
+/**
+ * Numeric engine of the encoder and decoder. Integers up to 64 bits are written to and read
+ * from SMALL_BIG_EXT straight from a long, and SMALL_INTEGER_EXT values are boxed from caches,
+ * so IDs and timestamps cost no byte[] or BigInteger. Bigs are written as sign and magnitude
+ * like term_to_binary, never as two's complement.
+ * <p>
+ * Old format FLOAT_EXT text is written like the "%.20e" of the runtime. Text whose significant
+ * digits and power of ten a double holds exactly, like "2.50000000000000000000e+00", is parsed
+ * without allocating; other values, such as the 21 digits of 0.1, go through BigDecimal. Writing
+ * always does, so old format floats still allocate per value.
+ */
+final class NumberCodec implements DistributionHeader {
+
+    private static final Integer[] INTEGERS = new Integer[SMALL_INTEGER_EXT_MAX_VAL + 1];
+
+    static {
+        for (int i = 0; i <= SMALL_INTEGER_EXT_MAX_VAL; i++) {
+            INTEGERS[i] = i;
+        }
+    }
+
+    //powers of ten a double holds exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    //the mantissa digits of a double stay exact below 2^53
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private static final int FLOAT_DIGITS = 21;
+    private static final MathContext FLOAT_CONTEXT = new MathContext(FLOAT_DIGITS, RoundingMode.HALF_EVEN);
+
+    private NumberCodec() {
+    }
+
+    /**
+     * Boxes a SMALL_INTEGER_EXT value, decoded as an Integer like INTEGER_EXT.
+     */
+    static Integer smallInteger(int value) {
+        return INTEGERS[value];
+    }
+
+    /**
+     * Magnitude bytes of {@code l} in SMALL_BIG_EXT.
+     */
+    static int byteCount(long l) {
+        long magnitude = (l < 0) ? -l : l;      //Long.MIN_VALUE stays negative but its bits are right
+        return 8 - Long.numberOfLeadingZeros(magnitude) / 8;
+    }
+
+    /**
+     * Magnitude bytes of {@code b}; -2^n needs one bit more than its two's complement.
+     */
+    static int byteCount(BigInteger b) {
+        int bits = b.bitLength();
+        if (b.signum() < 0 && b.getLowestSetBit() == bits) bits++;
+        return (bits + 7) / 8;
+    }
+
+    /**
+     * Encoded size of {@code l}, tag included.
+     */
+    static int sizeOfLong(long l) {
+        if (Integer.MIN_VALUE <= l && l <= Integer.MAX_VALUE) {
+            return (SMALL_INTEGER_EXT_MIN_VAL <= l && l <= SMALL_INTEGER_EXT_MAX_VAL) ? 2 : 5;
+        }
+        return 3 + byteCount(l);
+    }
+
+    /**
+     * Encoded size of {@code b}, tag included.
+     */
+    static long sizeOfBig(BigInteger b) {
+        if (b.bitLength() < 64) return sizeOfLong(b.longValue());
+
+        int byteCount = byteCount(b);
+        return ((byteCount <= SMALL_INTEGER_EXT_MAX_VAL) ? 3 : 6) + (long) byteCount;
+    }
+
+    /**
+     * Writes the SMALL_BIG_EXT length, sign and magnitude of {@code l}, after the tag.
+     */
+    static void putLong(BertOutput out, long l) {
+        long magnitude = (l < 0) ? -l : l;
+        int byteCount = byteCount(l);
+
+        out.put((byte) byteCount);
+        out.put((byte) ((l < 0) ? 1 : 0));
+        for (int i = 0; i < byteCount; i++) {
+            out.put((byte) (magnitude >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Writes the sign and the {@code byteCount} magnitude bytes of {@code b}, after the tag
+     * and length.
+     */
+    static void putBig(BertOutput out, BigInteger b, int byteCount) {
+        //big-endian, with a leading zero byte when the top bit is set
+        byte[] magnitude = b.abs().toByteArray();
+
+        out.put((byte) ((b.signum() < 0) ? 1 : 0));
+        for (int i = 0; i < byteCount; i++) {
+            out.put(magnitude[magnitude.length - 1 - i]);
+        }
+    }
+
+    /**
+     * Reads the sign and {@code byteCount} magnitude bytes of a big.
+     *
+     * @return a Long when the value fits, otherwise a BigInteger
+     */
+    static Object getBig(ByteBuffer in, int byteCount) {
+        boolean negative = in.get() != 0;
+
+        if (byteCount <= 8) {
+            long magnitude = getMagnitude(in, in.position(), byteCount);
+            in.position(in.position() + byteCount);
+
+            if (fitsLong(negative, magnitude)) return negative ? -magnitude : magnitude;
+
+            byte[] bytes = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                bytes[7 - i] = (byte) (magnitude >>> (8 * i));
+            }
+            return new BigInteger(negative ? -1 : 1, bytes);
+        }
+
+        byte[] bytes = new byte[byteCount];
+        for (int i = byteCount; i > 0; i--) {
+            bytes[i - 1] = in.get();
+        }
+
+        BigInteger big = new BigInteger(negative ? -1 : 1, bytes);
+        if (big.bitLength() < 64) return big.longValue();
+        return big;
+    }
+
+    /**
+     * Reads the sign and {@code byteCount} magnitude bytes of a big already known to fit a long.
+     */
+    static long getLong(ByteBuffer in, int byteCount) {
+        boolean negative = in.get() != 0;
+        long magnitude = getMagnitude(in, in.position(), byteCount);
+        in.position(in.position() + byteCount);
+        return negative ? -magnitude : magnitude;
+    }
+
+    /**
+     * Little-endian magnitude of at most 8 bytes at {@code position}, as unsigned 64 bits.
+     */
+    static long getMagnitude(ByteBuffer in, int position, int byteCount) {
+        long magnitude = 0;
+        for (int i = 0; i < byteCount; i++) {
+            magnitude |= (long) (in.get(position + i) & 0xff) << (8 * i);
+        }
+        return magnitude;
+    }
+
+    /**
+     * Whether the big of {@code magnitude} fits a long; above Long.MAX_VALUE only -2^63 does.
+     */
+    static boolean fitsLong(boolean negative, long magnitude) {
+        return magnitude >= 0 || (negative && magnitude == Long.MIN_VALUE);
+    }
+
+    /**
+     * Writes the FLOAT_LENGTH bytes of an old format FLOAT_EXT, after the tag.
+     */
+    static void putOldFloat(BertOutput out, double d) {
+        int written;
+
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            String text = Double.toString(d);
+            out.putLatin1(text);
+            written = text.length();
+        } else {
+            written = putScientific(out, d);
+        }
+
+        for (; written < FLOAT_LENGTH; written++) {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * "%.20e" of the exact value of {@code d}, rounded half even like the C library.
+     */
+    private static int putScientific(BertOutput out, double d) {
+        int written = 0;
+        if (Double.doubleToRawLongBits(d) < 0) {
+            out.put((byte) '-');
+            written++;
+        }
+
+        BigDecimal rounded = new BigDecimal(Math.abs(d)).round(FLOAT_CONTEXT);
+        String digits = rounded.unscaledValue().toString();
+        int exponent = digits.length() - 1 - rounded.scale();
+
+        out.put((byte) digits.charAt(0));
+        out.put((byte) '.');
+        for (int i = 1; i < FLOAT_DIGITS; i++) {
+            out.put((byte) ((i < digits.length()) ? digits.charAt(i) : '0'));
+        }
+        written += 1 + FLOAT_DIGITS;
+
+        out.put((byte) 'e');
+        out.put((byte) ((exponent < 0) ? '-' : '+'));
+        exponent = Math.abs(exponent);
+        written += 2;
+
+        if (exponent >= 100) {
+            out.put((byte) ('0' + exponent / 100));
+            written++;
+        }
+        out.put((byte) ('0' + exponent / 10 % 10));
+        out.put((byte) ('0' + exponent % 10));
+        return written + 2;
+    }
+
+    /**
+     * Reads the FLOAT_LENGTH bytes of an old format FLOAT_EXT from the position of {@code in}.
+     */
+    static double getOldFloat(ByteBuffer in) throws InvalidObjectException {
+        double d = parseOldFloat(in, in.position());
+        in.position(in.position() + FLOAT_LENGTH);
+        return d;
+    }
+
+    /**
+     * Parses the FLOAT_LENGTH bytes at {@code position}: text padded with NUL or spaces.
+     */
+    static double parseOldFloat(ByteBuffer in, int position) throws InvalidObjectException {
+        int end = position + FLOAT_LENGTH;
+        int start = position;
+        while (start < end && isPadding(in.get(start))) start++;
+        int stop = start;
+        while (stop < end && !isPadding(in.get(stop))) stop++;
+
+        int i = start;
+        boolean negative = false;
+        if (i < stop && (in.get(i) == '-' || in.get(i) == '+')) negative = in.get(i++) == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        boolean fraction = false;
+        boolean seen = false;
+
+        for (; i < stop; i++) {
+            byte c = in.get(i);
+
+            if (c == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (c < '0' || c > '9') break;
+
+            seen = true;
+            int digit = c - '0';
+            if (mantissa == 0 && digit == 0) {
+                if (fraction) exponent--;
+            } else if (digits < 18) {
+                mantissa = mantissa * 10 + digit;
+                digits++;
+                if (fraction) exponent--;
+            } else {
+                if (digit != 0) exact = false;
+                if (!fraction) exponent++;
+            }
+        }
+
+        if (seen && i < stop && (in.get(i) == 'e' || in.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < stop && (in.get(i) == '-' || in.get(i) == '+')) negativeExponent = in.get(i++) == '-';
+
+            int value = 0;
+            int first = i;
+            for (; i < stop && in.get(i) >= '0' && in.get(i) <= '9'; i++) {
+                if (value < 10000) value = value * 10 + (in.get(i) - '0');
+            }
+            if (i == first) seen = false;
+            exponent += negativeExponent ? -value : value;
+        }
+
+        for (int rest = stop; rest < end; rest++) {
+            if (!isPadding(in.get(rest))) seen = false;
+        }
+
+        if (!seen || i != stop) return parseOther(in, start, stop);
+
+        if (exact) {
+            while (mantissa != 0 && mantissa % 10 == 0) {
+                mantissa /= 10;
+                exponent++;
+            }
+
+            if (mantissa == 0) return negative ? -0.0 : 0.0;
+
+            if (mantissa < MAX_EXACT_MANTISSA && Math.abs(exponent) < POWERS_OF_TEN.length) {
+                //one correctly rounded operation on exact operands
+                double d = (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+                return negative ? -d : d;
+            }
+        }
+
+        return parseOther(in, start, stop);
+    }
+
+    private static double parseOther(ByteBuffer in, int start, int stop) throws InvalidObjectException {
+        char[] text = new char[stop - start];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (char) (in.get(start + i) & 0xff);
+        }
+
+        try {
+            return new BigDecimal(text, 0, text.length).doubleValue();
+        } catch (NumberFormatException e) {
+            String s = new String(text);
+            if (s.equals("NaN")) return Double.NaN;
+            if (s.equals("Infinity")) return Double.POSITIVE_INFINITY;
+            if (s.equals("-Infinity")) return Double.NEGATIVE_INFINITY;
+            throw new InvalidObjectException("Invalid float " + s);
+        }
+    }
+
+    private static boolean isPadding(byte b) {
+        return b == 0 || b == ' ';
+    }
+}
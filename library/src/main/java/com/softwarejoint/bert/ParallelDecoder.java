@@ -0,0 +1,267 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes one large term on several threads. The calling thread scans the element boundaries
+ * at byte level and cuts every list, map or tuple of at least {@code threshold} bytes into
+ * ranges of about that size. The ranges are decoded on the executor by pooled decoders and
+ * stitched back in their original order with the options of the config.
+ * <p>
+ * While waiting the calling thread runs ranges not started yet itself, so a busy or single
+ * threaded executor only costs parallelism, never progress.
+ * <p>
+ * Only the outer {@link #MAX_SPLIT_DEPTH} levels are split. Depth, allocation and element
+ * limits hold for the whole term: all ranges charge one shared budget.
+ */
+final class ParallelDecoder implements DistributionHeader {
+
+    //planning recurses, deeper containers are decoded by the iterative decoder
+    private static final int MAX_SPLIT_DEPTH = 16;
+
+    private final BertDecoderConfig config;
+    private final Executor executor;
+    private final int threshold;
+    private final boolean numericListsAsArrays;
+    private final BertTypeRegistry typeRegistry;
+
+    ParallelDecoder(BertDecoderConfig config, Executor executor, int threshold,
+                    boolean numericListsAsArrays, BertTypeRegistry typeRegistry) {
+        this.config = config;
+        this.executor = executor;
+        this.threshold = threshold;
+        this.numericListsAsArrays = numericListsAsArrays;
+        this.typeRegistry = (typeRegistry != null) ? typeRegistry : BertTypeRegistry.shared();
+    }
+
+    Object decode(ByteBuffer data) throws InvalidObjectException {
+        BertDecoder decoder = config.acquire();
+        try {
+            return decode(data, decoder);
+        } finally {
+            config.release(decoder);
+        }
+    }
+
+    private Object decode(ByteBuffer data, BertDecoder decoder) throws InvalidObjectException {
+        ByteBuffer view = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+        if (!view.hasRemaining() || view.get() != MAGIC) {
+            throw new InvalidObjectException("Invalid Format");
+        }
+        if (!view.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        if (view.get(view.position()) == DIST_HEADER) return decoder.decode(data);
+
+        //only size and time are reported, the tags counted by the workers are not collected
+        decoder.beginTerm();
+        BertDecoder.SharedBudget budget = new BertDecoder.SharedBudget();
+        decoder.beginBudget(budget);
+
+        int consumed;
+        switch (view.get(view.position())) {
+            case COMPRESSED:
+                view.get();
+                ByteBuffer inflated = decoder.inflate(view);
+                consumed = view.position();
+                view = inflated;
+                break;
+            default:
+                consumed = -1;
+        }
+
+        int position = view.position();
+        int end = TermScanner.skip(view, position);
+
+        Object root = plan(view, position, end, 0, decoder, budget);
+        ArrayList<Range> ranges = new ArrayList<>();
+        //a term not worth splitting is decoded right here
+        if (root instanceof Node) submit(root, ranges);
+
+        try {
+            Object decoded = stitch(root, decoder);
+            int start = data.position();
+            data.position((consumed >= 0) ? consumed : end);
+            decoder.endTerm(data.position() - start);
+            return decoded;
+        } finally {
+            for (Range range : ranges) {
+                range.cancel(false);
+            }
+            decoder.beginBudget();
+        }
+    }
+
+    /**
+     * @param depth nesting of the container holding the term, 0 for the root
+     * @return a {@link Node} for a container that is split, otherwise a {@link Range} of the term
+     */
+    private Object plan(ByteBuffer view, int position, int end, int depth, BertDecoder decoder,
+                        BertDecoder.SharedBudget budget) throws InvalidObjectException {
+        byte tag = view.get(position);
+        if (end - position < threshold || depth >= MAX_SPLIT_DEPTH || !isSplittable(tag)) {
+            return new Range(view, position, 1, depth, budget);
+        }
+
+        Node node = new Node(tag);
+        long children = TermScanner.arity(view, position) * ((tag == MAP_EXT) ? 2 : 1);
+        //the children are charged once the container is known to be split, not decoded whole
+        decoder.checkNesting(depth + 1, 0);
+        int child = TermScanner.firstChild(view, position);
+        int rangeStart = child;
+        int rangeCount = 0;
+        boolean numeric = tag == LIST_EXT;
+
+        for (long i = 0; i < children; i++) {
+            numeric = numeric && isNumeric(view.get(child));
+            int next = TermScanner.skip(view, child);
+
+            if (next - child >= threshold) {
+                //a large child is split on its own
+                if (rangeCount > 0) node.parts.add(new Range(view, rangeStart, rangeCount, depth + 1, budget));
+                node.parts.add(plan(view, child, next, depth + 1, decoder, budget));
+                rangeStart = next;
+                rangeCount = 0;
+            } else {
+                rangeCount++;
+                if (next - rangeStart >= threshold) {
+                    node.parts.add(new Range(view, rangeStart, rangeCount, depth + 1, budget));
+                    rangeStart = next;
+                    rangeCount = 0;
+                }
+            }
+            child = next;
+        }
+        if (rangeCount > 0) node.parts.add(new Range(view, rangeStart, rangeCount, depth + 1, budget));
+
+        if (tag == LIST_EXT) {
+            //improper lists and lists decoded as primitive arrays stay in one piece
+            boolean proper = child + 1 == end && view.get(child) == NIL_EXT;
+            if (!proper || (numericListsAsArrays && numeric)) return new Range(view, position, 1, depth, budget);
+        }
+
+        decoder.checkNesting(depth + 1, children);
+        node.size = (int) Math.min(children, Integer.MAX_VALUE);
+        return node;
+    }
+
+    private boolean isSplittable(byte tag) {
+        switch (tag) {
+            case LIST_EXT:
+            case MAP_EXT:
+            case SMALL_TUPLE_EXT:
+            case LARGE_TUPLE_EXT:
+                BertCodec<?>[] hooks = typeRegistry.tagDecoders();
+                return hooks == null || hooks[tag & 0xff] == null;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isNumeric(byte tag) {
+        return tag == SMALL_INTEGER_EXT || tag == INTEGER_EXT || tag == NEW_FLOAT_EXT || tag == SMALL_BIG_EXT;
+    }
+
+    private void submit(Object part, ArrayList<Range> ranges) {
+        if (part instanceof Range) {
+            Range range = (Range) part;
+            ranges.add(range);
+            executor.execute(range);
+            return;
+        }
+
+        for (Object child : ((Node) part).parts) {
+            submit(child, ranges);
+        }
+    }
+
+    private Object stitch(Object part, BertDecoder decoder) throws InvalidObjectException {
+        if (part instanceof Range) return ((Range) part).values()[0];
+
+        Node node = (Node) part;
+        ArrayList<Object> values = new ArrayList<>(node.size);
+        for (Object child : node.parts) {
+            if (child instanceof Range) Collections.addAll(values, ((Range) child).values());
+            else values.add(stitch(child, decoder));
+        }
+
+        Object[] items = values.toArray();
+        switch (node.tag) {
+            case LIST_EXT:
+                return decoder.newList(items, 0, items.length);
+            case MAP_EXT:
+                return decoder.newMap(items, 0, items.length);
+            default:
+                return decoder.newTuple(items, 0, items.length);
+        }
+    }
+
+    private static final class Node {
+
+        final byte tag;
+        final ArrayList<Object> parts = new ArrayList<>();
+        int size;
+
+        Node(byte tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Consecutive terms decoded by one task.
+     */
+    private final class Range extends FutureTask<Object[]> {
+
+        Range(final ByteBuffer source, final int position, final int count, final int depth,
+              final BertDecoder.SharedBudget budget) {
+            super(new Callable<Object[]>() {
+                @Override
+                public Object[] call() throws InvalidObjectException {
+                    BertDecoder decoder = config.acquire();
+                    decoder.beginBudget(budget);
+                    try {
+                        ByteBuffer view = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+                        view.position(position);
+
+                        Object[] values = new Object[count];
+                        for (int i = 0; i < count; i++) {
+                            values[i] = decoder.decodeTerm(view, depth);
+                        }
+                        return values;
+                    } finally {
+                        decoder.beginBudget();
+                        config.release(decoder);
+                    }
+                }
+            });
+        }
+
+        Object[] values() throws InvalidObjectException {
+            //runs here unless a worker already took it
+            run();
+
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InvalidObjectException("Interrupted while decoding");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InvalidObjectException) throw (InvalidObjectException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+}
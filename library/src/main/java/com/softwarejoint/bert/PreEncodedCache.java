@@ -0,0 +1,140 @@
+package com.softwarejoint.bert;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used {@link PreEncodedTerm}s keyed by the identity of the value they were
+ * encoded from, for sub-terms that are not constant but recur, e.g. the current session state
+ * sent along with every broadcast:
+ * <pre>
+ * message.add(cache.get(session));      //encoded on the first use only
+ * ...
+ * cache.invalidate(session);            //after changing it
+ * </pre>
+ * Values are compared by identity only, so a value changed in place must be invalidated or its
+ * old bytes are sent. Entries hold their value strongly until evicted. Thread safe.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class PreEncodedCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final BertEncoderConfig config;
+
+    private final LinkedHashMap<Identity, PreEncodedTerm> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //reused for lookups under the lock
+    private final Identity probe = new Identity(null);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public PreEncodedCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxBytes total encoded size kept
+     * @param config   options to encode with, or null for the defaults
+     */
+    public PreEncodedCache(int maxEntries, long maxBytes, BertEncoderConfig config) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size " + maxEntries + " / " + maxBytes);
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.config = config;
+    }
+
+    /**
+     * The cached encoding of {@code term}, encoding it on a miss.
+     */
+    public PreEncodedTerm get(Object term) {
+        if (term instanceof PreEncodedTerm) return (PreEncodedTerm) term;
+
+        synchronized (this) {
+            probe.value = term;
+            PreEncodedTerm cached = entries.get(probe);
+            probe.value = null;
+
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        //outside the lock; two threads missing at once both encode, the last one is kept
+        PreEncodedTerm encoded = (config != null) ? PreEncodedTerm.of(term, config) : PreEncodedTerm.of(term);
+        if (encoded.size() > maxBytes) return encoded;
+
+        synchronized (this) {
+            PreEncodedTerm previous = entries.put(new Identity(term), encoded);
+            if (previous != null) bytes -= previous.size();
+            bytes += encoded.size();
+            evict();
+        }
+        return encoded;
+    }
+
+    public synchronized void invalidate(Object term) {
+        probe.value = term;
+        PreEncodedTerm removed = entries.remove(probe);
+        probe.value = null;
+
+        if (removed != null) bytes -= removed.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Encoded size of all entries.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Identity, PreEncodedTerm>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+
+    private static final class Identity {
+
+        Object value;
+
+        Identity(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A term encoded once and copied by {@link BertEncoder} into every term containing it with a
+ * single bulk put, e.g. a routing header shared by many outgoing messages:
+ * <pre>
+ * PreEncodedTerm header = PreEncodedTerm.of(routingHeader);
+ * ...
+ * BertTuple message = new BertTuple();
+ * message.add(header);
+ * message.add(payload);
+ * encoder.encodeAny(message);
+ * </pre>
+ * The bytes are spliced as they are: options of the encoder using it, such as strings as
+ * binaries, do not apply to them, and their atoms are never sent as ATOM_CACHE_REF. Immutable
+ * and thread safe; see {@link PreEncodedCache} for terms that are not constant but recur.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class PreEncodedTerm implements DistributionHeader {
+
+    //the term without MAGIC
+    private final byte[] data;
+
+    private PreEncodedTerm(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Encodes {@code term} with the default options.
+     */
+    public static PreEncodedTerm of(Object term) {
+        return of(term, new BertEncoder());
+    }
+
+    /**
+     * Encodes {@code term} with the options of {@code config}; compression is not applied.
+     */
+    public static PreEncodedTerm of(Object term, BertEncoderConfig config) {
+        return of(term, config.newEncoder());
+    }
+
+    static PreEncodedTerm of(Object term, BertEncoder encoder) {
+        if (term instanceof PreEncodedTerm) return (PreEncodedTerm) term;
+
+        encoder.setCompressionThreshold(-1);
+        byte[] data = new byte[encoder.sizeOf(term) - 1];
+        encoder.encodeValue(term, new BertOutput(ByteBuffer.wrap(data)));
+        return new PreEncodedTerm(data);
+    }
+
+    public static PreEncodedTerm fromBytes(byte[] data) throws InvalidObjectException {
+        return fromBytes(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Copies the single term between the position and limit of {@code data}, as written by
+     * term_to_binary with or without MAGIC, or taken from {@link LazyTerm#raw()}. COMPRESSED
+     * terms, distribution headers and ATOM_CACHE_REF are not supported.
+     */
+    public static PreEncodedTerm fromBytes(ByteBuffer data) throws InvalidObjectException {
+        ByteBuffer view = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (view.hasRemaining() && view.get(view.position()) == MAGIC) view.get();
+
+        if (!view.hasRemaining()) {
+            throw new InvalidObjectException("Truncated term");
+        }
+
+        switch (view.get(view.position())) {
+            case COMPRESSED:
+            case DIST_HEADER:
+                throw new InvalidObjectException("Compressed terms and distribution headers cannot be spliced");
+        }
+
+        if (TermScanner.skip(view, view.position()) != view.limit()) {
+            throw new InvalidObjectException("Bytes left after term");
+        }
+
+        byte[] copy = new byte[view.remaining()];
+        view.get(copy);
+        return new PreEncodedTerm(copy);
+    }
+
+    /**
+     * Encoded size without MAGIC.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Read-only view of the encoded term without MAGIC.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    void writeTo(BertOutput output) {
+        output.put(data);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PreEncodedTerm && Arrays.equals(data, ((PreEncodedTerm) o).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+}
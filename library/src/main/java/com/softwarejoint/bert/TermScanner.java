@@ -0,0 +1,151 @@
+package com.softwarejoint.bert;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks encoded terms at byte level without building any objects. Only absolute reads are
+ * used, so the position of the scanned buffer is never changed.
+ */
+final class TermScanner implements DistributionHeader {
+
+    private TermScanner() {
+    }
+
+    /**
+     * Returns the position just after the term whose tag is at {@code position}. Nested
+     * terms are counted instead of recursed into, so any depth is skipped in constant stack.
+     */
+    static int skip(ByteBuffer buffer, int position) throws InvalidObjectException {
+        long limit = buffer.limit();
+        long pos = position;
+        long pending = 1;
+
+        while (pending > 0) {
+            require(pos, 1, limit);
+            byte tag = buffer.get((int) pos++);
+            pending--;
+
+            switch (tag) {
+                case NIL_EXT:
+                    break;
+                case SMALL_INTEGER_EXT:
+                case ATOM_CACHE_REF:
+                    pos += 1;
+                    break;
+                case INTEGER_EXT:
+                    pos += 4;
+                    break;
+                case NEW_FLOAT_EXT:
+                    pos += 8;
+                    break;
+                case FLOAT_EXT:
+                    pos += FLOAT_LENGTH;
+                    break;
+                case SMALL_BIG_EXT:
+                    require(pos, 1, limit);
+                    pos += 2 + u8(buffer, pos);
+                    break;
+                case LARGE_BIG_EXT:
+                    require(pos, 4, limit);
+                    pos += 5 + u32(buffer, pos);
+                    break;
+                case SMALL_ATOM_EXT:
+                case SMALL_ATOM_UTF8_EXT:
+                    require(pos, 1, limit);
+                    pos += 1 + u8(buffer, pos);
+                    break;
+                case ATOM_EXT:
+                case ATOM_UTF8_EXT:
+                case STRING_EXT:
+                    require(pos, 2, limit);
+                    pos += 2 + u16(buffer, pos);
+                    break;
+                case BINARY_EXT:
+                    require(pos, 4, limit);
+                    pos += 4 + u32(buffer, pos);
+                    break;
+                case SMALL_TUPLE_EXT:
+                    require(pos, 1, limit);
+                    pending += u8(buffer, pos);
+                    pos += 1;
+                    break;
+                case LARGE_TUPLE_EXT:
+                    require(pos, 4, limit);
+                    pending += u32(buffer, pos);
+                    pos += 4;
+                    break;
+                case LIST_EXT:
+                    require(pos, 4, limit);
+                    pending += u32(buffer, pos) + 1;
+                    pos += 4;
+                    break;
+                case MAP_EXT:
+                    require(pos, 4, limit);
+                    pending += 2 * u32(buffer, pos);
+                    pos += 4;
+                    break;
+                default:
+                    throw new InvalidObjectException("Invalid Type " + tag);
+            }
+
+            //every pending term needs at least its tag byte
+            if (pending > limit - pos) {
+                throw new InvalidObjectException("Truncated term");
+            }
+        }
+
+        require(pos, 0, limit);
+        return (int) pos;
+    }
+
+    /**
+     * Position of the first child of the container whose tag is at {@code position}.
+     */
+    static int firstChild(ByteBuffer buffer, int position) {
+        switch (buffer.get(position)) {
+            case SMALL_TUPLE_EXT:
+                return position + 2;
+            case LARGE_TUPLE_EXT:
+            case LIST_EXT:
+            case MAP_EXT:
+                return position + 5;
+            default:
+                return position + 1;
+        }
+    }
+
+    /**
+     * Number of children of a tuple, list (without its tail) or map (in pairs); 0 for anything else.
+     */
+    static long arity(ByteBuffer buffer, int position) {
+        switch (buffer.get(position)) {
+            case SMALL_TUPLE_EXT:
+                return u8(buffer, position + 1);
+            case LARGE_TUPLE_EXT:
+            case LIST_EXT:
+            case MAP_EXT:
+                return u32(buffer, position + 1);
+            default:
+                return 0;
+        }
+    }
+
+    static int u8(ByteBuffer buffer, long position) {
+        return buffer.get((int) position) & 0xff;
+    }
+
+    static int u16(ByteBuffer buffer, long position) {
+        return buffer.getShort((int) position) & 0xffff;
+    }
+
+    static long u32(ByteBuffer buffer, long position) {
+        return buffer.getInt((int) position) & 0xffffffffL;
+    }
+
+    private static void require(long position, int bytes, long limit) throws InvalidObjectException {
+        if (position + bytes > limit) {
+            throw new InvalidObjectException("Truncated term");
+        }
+    }
+}
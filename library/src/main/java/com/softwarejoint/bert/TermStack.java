@@ -0,0 +1,142 @@
+package com.softwarejoint.bert;
+
+import java.util.Arrays;
+
+/**
+ * Explicit stack of the lists, tuples and maps being decoded by {@link BertDecoder} and
+ * {@link BertStreamDecoder}, so nesting costs heap instead of thread stack.
+ * <p>
+ * Children are collected on one shared value stack and each container is built by the decoder
+ * once complete, from exactly the children that arrived. Nothing is sized from a header, as
+ * nested headers may each claim the same remaining input.
+ */
+final class TermStack {
+
+    static final int LIST = 0;
+    static final int TUPLE = 1;
+    static final int MAP = 2;
+
+    //returned by complete() while frames are still open
+    static final Object PENDING = new Object();
+
+    //larger stacks are dropped after a term rather than kept by a pooled decoder
+    private static final int RETAINED_FRAMES = 1024;
+    private static final int RETAINED_VALUES = 64 * 1024;
+
+    private final BertDecoder decoder;
+
+    private int[] types = new int[16];
+    private long[] remaining = new long[16];
+    private boolean[] tails = new boolean[16];
+    private int[] starts = new int[16];
+    private int depth;
+
+    private Object[] values = new Object[64];
+    private int valueCount;
+
+    TermStack(BertDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * True when the list on top has all its elements and waits for its tail.
+     */
+    boolean isTail() {
+        return depth > 0 && tails[depth - 1];
+    }
+
+    /**
+     * Opens a container of {@code children} terms, without the list tail.
+     *
+     * @return true when it is already complete and should be {@link #pop() popped}
+     */
+    boolean push(int type, long children) {
+        if (depth == types.length) {
+            types = Arrays.copyOf(types, depth * 2);
+            remaining = Arrays.copyOf(remaining, depth * 2);
+            tails = Arrays.copyOf(tails, depth * 2);
+            starts = Arrays.copyOf(starts, depth * 2);
+        }
+
+        types[depth] = type;
+        remaining[depth] = children;
+        tails[depth] = type == LIST && children == 0;
+        starts[depth] = valueCount;
+        depth++;
+        return children == 0 && type != LIST;
+    }
+
+    /**
+     * Adds {@code value} to the container on top and pops every container it completes.
+     *
+     * @return the finished term once the stack is back at {@code base}, otherwise {@link #PENDING}
+     */
+    Object complete(Object value, int base) {
+        while (depth > base) {
+            int top = depth - 1;
+
+            if (valueCount == values.length) values = Arrays.copyOf(values, valueCount * 2);
+            values[valueCount++] = value;
+
+            //an improper list tail is kept as the last element
+            if (tails[top]) tails[top] = false;
+            else if (--remaining[top] == 0) tails[top] = types[top] == LIST;
+
+            if (remaining[top] > 0 || tails[top]) return PENDING;
+            value = pop();
+        }
+        return value;
+    }
+
+    /**
+     * Closes the container on top, e.g. a list on its NIL tail.
+     */
+    Object pop() {
+        int top = --depth;
+        int start = starts[top];
+        int count = valueCount - start;
+
+        Object built;
+        switch (types[top]) {
+            case LIST:
+                built = decoder.newList(values, start, count);
+                break;
+            case TUPLE:
+                built = decoder.newTuple(values, start, count);
+                break;
+            default:
+                built = decoder.newMap(values, start, count);
+                break;
+        }
+
+        Arrays.fill(values, start, valueCount, null);
+        valueCount = start;
+        return built;
+    }
+
+    /**
+     * Drops the containers above {@code base}, e.g. after a failure.
+     */
+    void clear(int base) {
+        if (depth > base) {
+            int start = starts[base];
+            Arrays.fill(values, start, valueCount, null);
+            valueCount = start;
+            depth = base;
+        }
+
+        if (depth == 0) {
+            if (types.length > RETAINED_FRAMES) {
+                types = new int[16];
+                remaining = new long[16];
+                tails = new boolean[16];
+                starts = new int[16];
+            }
+            if (values.length > RETAINED_VALUES) values = new Object[64];
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.softwarejoint.bert;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * String engine of the encoder and decoder. Text is measured exactly and written char by char
+ * into a {@link BertOutput}, and decoded with an ASCII / Latin-1 fast path or a reused
+ * {@link CharsetDecoder}, so neither direction builds a temporary byte[].
+ * <p>
+ * Instances hold decode state and are not thread safe; the static helpers are.
+ */
+final class TextCodec {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static final int MIN_CHARS = 256;
+
+    private final CharsetDecoder utf8Decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(MIN_CHARS);
+
+    /**
+     * Code point at {@code index}; an unpaired surrogate reads as '?', like String.getBytes.
+     */
+    static int codePointAt(CharSequence s, int index) {
+        char c = s.charAt(index);
+        if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) return c;
+
+        if (Character.isHighSurrogate(c) && index + 1 < s.length()) {
+            char low = s.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) return Character.toCodePoint(c, low);
+        }
+        return '?';
+    }
+
+    /**
+     * Number of bytes {@code s} takes in UTF-8.
+     */
+    static int utf8Length(CharSequence s) {
+        int length = s.length();
+        int bytes = length;
+        int i = 0;
+
+        //ASCII prefix costs one byte per char, already counted
+        while (i < length && s.charAt(i) < 0x80) i++;
+
+        while (i < length) {
+            int codePoint = codePointAt(s, i);
+            if (codePoint < 0x80) {
+                i++;
+            } else if (codePoint < 0x800) {
+                bytes += 1;
+                i++;
+            } else if (codePoint < 0x10000) {
+                bytes += 2;
+                i++;
+            } else {
+                //two chars, four bytes
+                bytes += 2;
+                i += 2;
+            }
+        }
+        return bytes;
+    }
+
+    static boolean isLatin1(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xff) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the UTF-8 bytes of {@code codePoint} at {@code position} of {@code array}.
+     *
+     * @return position after the last byte written
+     */
+    static int putUtf8(byte[] array, int position, int codePoint) {
+        if (codePoint < 0x80) {
+            array[position++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            array[position++] = (byte) (0xc0 | (codePoint >>> 6));
+            array[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            array[position++] = (byte) (0xe0 | (codePoint >>> 12));
+            array[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+            array[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            array[position++] = (byte) (0xf0 | (codePoint >>> 18));
+            array[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+            array[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+            array[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+        return position;
+    }
+
+    static String decode(byte[] data) {
+        return isAscii(data, 0, data.length) ? new String(data, LATIN1) : new String(data, UTF8);
+    }
+
+    /**
+     * Decodes {@code length} bytes at the absolute {@code position} of {@code buffer} as
+     * {@code charset}, which is UTF-8 or Latin-1. The buffer position is not changed.
+     */
+    String decode(ByteBuffer buffer, int position, int length, Charset charset) {
+        if (length == 0) return "";
+
+        boolean latin1 = (charset == LATIN1) || isAscii(buffer, position, length);
+
+        if (latin1 && buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, LATIN1);
+        }
+
+        CharBuffer out = chars(length);
+
+        if (latin1) {
+            char[] array = out.array();
+            for (int i = 0; i < length; i++) {
+                array[i] = (char) (buffer.get(position + i) & 0xff);
+            }
+            return new String(array, 0, length);
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        in.limit(position + length).position(position);
+
+        utf8Decoder.reset();
+        utf8Decoder.decode(in, out, true);
+        utf8Decoder.flush(out);
+        return new String(out.array(), 0, out.position());
+    }
+
+    private CharBuffer chars(int length) {
+        //UTF-8 never decodes to more chars than bytes
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        chars.clear();
+        return chars;
+    }
+
+    private static boolean isAscii(ByteBuffer buffer, int position, int length) {
+        if (buffer.hasArray()) {
+            return isAscii(buffer.array(), buffer.arrayOffset() + position, length);
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) < 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean isAscii(byte[] array, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (array[i] < 0) return false;
+        }
+        return true;
+    }
+}
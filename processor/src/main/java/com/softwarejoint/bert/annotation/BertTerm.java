@@ -0,0 +1,46 @@
+package com.softwarejoint.bert.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a {@code <Name>_BertCodec} next to the annotated class or record, which encodes
+ * and decodes it straight from the buffer. Static and transient fields are ignored.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface BertTerm {
+
+    enum Shape {
+        /** {Tag, Field1, Field2, ...}, or without the tag when none is given */
+        TUPLE,
+        /** #{key1 => Field1, ...} */
+        MAP,
+        /** [{key1, Field1}, ...] */
+        PROPLIST
+    }
+
+    enum Keys {
+        ATOM,
+        BINARY
+    }
+
+    Shape shape() default Shape.TUPLE;
+
+    /**
+     * Atom written as the first tuple element, like the name of an Erlang record.
+     */
+    String tag() default "";
+
+    /**
+     * How field names are written as keys of maps and proplists.
+     */
+    Keys keys() default Keys.ATOM;
+
+    /**
+     * Write String fields as UTF-8 binaries; otherwise the options of the encoder apply.
+     */
+    boolean stringsAsBinary() default true;
+}
@@ -0,0 +1,288 @@
+package com.softwarejoint.bert.processor;
+
+import com.softwarejoint.bert.annotation.BertField;
+import com.softwarejoint.bert.annotation.BertTerm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code BertCodec} implementation for every class or record annotated with
+ * {@link BertTerm}. Fields of primitive, boxed, String, byte[], BertAtom, enum and other
+ * {@code @BertTerm} types are read and written directly; anything else is handed to the
+ * BertEncoder / BertDecoder in use.
+ */
+public final class BertCodecProcessor extends AbstractProcessor {
+
+    static final String SUFFIX = "_BertCodec";
+
+    private Elements elements;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(BertTerm.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(BertTerm.class)) {
+            if (!(element instanceof TypeElement)) continue;
+
+            TypeElement type = (TypeElement) element;
+            try {
+                List<Field> fields = collectFields(type);
+                if (fields == null) continue;
+
+                CodecWriter codec = new CodecWriter(type, type.getAnnotation(BertTerm.class), fields,
+                        packageOf(type), codecName(type), isRecord(type));
+
+                Writer writer = processingEnv.getFiler()
+                        .createSourceFile(codec.qualifiedName(), type)
+                        .openWriter();
+                try {
+                    writer.write(codec.write());
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                error(type, "Cannot write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private List<Field> collectFields(TypeElement type) {
+        boolean record = isRecord(type);
+
+        if (!record && type.getKind() != ElementKind.CLASS) {
+            error(type, "@BertTerm can only be used on classes and records");
+            return null;
+        }
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "@BertTerm classes cannot be abstract");
+            return null;
+        }
+        if (!record && !hasNoArgConstructor(type)) {
+            error(type, "@BertTerm classes need a non-private no-arg constructor");
+            return null;
+        }
+
+        List<Field> fields = new ArrayList<>();
+
+        for (Element member : type.getEnclosedElements()) {
+            boolean component = member.getKind().name().equals("RECORD_COMPONENT");
+            if (record ? !component : member.getKind() != ElementKind.FIELD) continue;
+
+            Set<Modifier> modifiers = member.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+
+            String name = member.getSimpleName().toString();
+            TypeMirror fieldType = member.asType();
+            Field field = new Field(name, keyOf(member, type, name), fieldType, kindOf(fieldType));
+
+            if (record) {
+                field.read = "value." + name + "()";
+            } else if (!modifiers.contains(Modifier.PRIVATE)) {
+                field.read = "value." + name;
+                field.write = "value." + name + " = %s;";
+            } else {
+                String getter = findMethod(type, fieldType, name, true);
+                String setter = findMethod(type, fieldType, name, false);
+                if (getter == null || setter == null) {
+                    error(member, "Private field needs a getter and setter or must not be private");
+                    return null;
+                }
+                field.read = "value." + getter + "()";
+                field.write = "value." + setter + "(%s);";
+            }
+
+            fields.add(field);
+        }
+
+        return fields;
+    }
+
+    private String keyOf(Element member, TypeElement type, String name) {
+        BertField annotation = member.getAnnotation(BertField.class);
+        if (annotation == null && isRecord(type)) {
+            //annotations on record components are propagated to the backing field
+            for (Element field : type.getEnclosedElements()) {
+                if (field.getKind() == ElementKind.FIELD && field.getSimpleName().contentEquals(name)) {
+                    annotation = field.getAnnotation(BertField.class);
+                }
+            }
+        }
+        return (annotation != null) ? annotation.name() : name;
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return Kind.INT;
+            case SHORT:
+                return Kind.SHORT;
+            case BYTE:
+                return Kind.BYTE;
+            case LONG:
+                return Kind.LONG;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case FLOAT:
+                return Kind.FLOAT;
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case ARRAY:
+                return type.toString().equals("byte[]") ? Kind.BYTES : Kind.OTHER;
+            case DECLARED:
+                break;
+            default:
+                return Kind.OTHER;
+        }
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        String name = element.getQualifiedName().toString();
+
+        switch (name) {
+            case "java.lang.Integer":
+                return Kind.BOXED_INT;
+            case "java.lang.Short":
+                return Kind.BOXED_SHORT;
+            case "java.lang.Byte":
+                return Kind.BOXED_BYTE;
+            case "java.lang.Long":
+                return Kind.BOXED_LONG;
+            case "java.lang.Double":
+                return Kind.BOXED_DOUBLE;
+            case "java.lang.Float":
+                return Kind.BOXED_FLOAT;
+            case "java.lang.Boolean":
+                return Kind.BOXED_BOOLEAN;
+            case "java.lang.String":
+                return Kind.STRING;
+            case "com.softwarejoint.bert.BertAtom":
+                return Kind.ATOM;
+        }
+
+        if (element.getKind() == ElementKind.ENUM) return Kind.ENUM;
+        if (element.getAnnotation(BertTerm.class) != null) return Kind.NESTED;
+        return Kind.OTHER;
+    }
+
+    private boolean hasNoArgConstructor(TypeElement type) {
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.CONSTRUCTOR) continue;
+
+            ExecutableElement constructor = (ExecutableElement) member;
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String findMethod(TypeElement type, TypeMirror fieldType, String name, boolean getter) {
+        String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+        for (Element member : elements.getAllMembers(type)) {
+            if (member.getKind() != ElementKind.METHOD || member.getModifiers().contains(Modifier.PRIVATE)) continue;
+
+            ExecutableElement method = (ExecutableElement) member;
+            String methodName = method.getSimpleName().toString();
+            List<? extends VariableElement> parameters = method.getParameters();
+
+            if (getter) {
+                boolean named = methodName.equals("get" + suffix)
+                        || (fieldType.getKind() == TypeKind.BOOLEAN && methodName.equals("is" + suffix));
+                if (named && parameters.isEmpty()) return methodName;
+            } else if (methodName.equals("set" + suffix) && parameters.size() == 1
+                    && processingEnv.getTypeUtils().isSameType(parameters.get(0).asType(), fieldType)) {
+                return methodName;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isRecord(TypeElement type) {
+        return type.getKind().name().equals("RECORD");
+    }
+
+    static String packageOf(Element element) {
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return ((PackageElement) element).getQualifiedName().toString();
+    }
+
+    /**
+     * Outer.Inner becomes Outer_Inner_BertCodec in the package of Outer.
+     */
+    static String codecName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    enum Kind {
+        INT, SHORT, BYTE, LONG, DOUBLE, FLOAT, BOOLEAN,
+        BOXED_INT, BOXED_SHORT, BOXED_BYTE, BOXED_LONG, BOXED_DOUBLE, BOXED_FLOAT, BOXED_BOOLEAN,
+        STRING, BYTES, ATOM, ENUM, NESTED, OTHER
+    }
+
+    static final class Field {
+
+        final String name;
+        final String key;
+        final TypeMirror type;
+        final Kind kind;
+
+        String read;
+        String write;
+
+        Field(String name, String key, TypeMirror type, Kind kind) {
+            this.name = name;
+            this.key = key;
+            this.type = type;
+            this.kind = kind;
+        }
+    }
+}
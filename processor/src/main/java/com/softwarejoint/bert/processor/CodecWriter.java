@@ -0,0 +1,438 @@
+package com.softwarejoint.bert.processor;
+
+import com.softwarejoint.bert.annotation.BertTerm;
+import com.softwarejoint.bert.processor.BertCodecProcessor.Field;
+
+import java.util.List;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+
+/**
+ * Source of one generated codec.
+ */
+final class CodecWriter {
+
+    private static final String PRIMITIVES = "BertPrimitives";
+
+    private final TypeElement type;
+    private final BertTerm term;
+    private final List<Field> fields;
+    private final String packageName;
+    private final String codecName;
+    private final boolean record;
+    private final String typeName;
+
+    private final StringBuilder out = new StringBuilder();
+    private int indent;
+
+    CodecWriter(TypeElement type, BertTerm term, List<Field> fields, String packageName,
+                String codecName, boolean record) {
+        this.type = type;
+        this.term = term;
+        this.fields = fields;
+        this.packageName = packageName;
+        this.codecName = codecName;
+        this.record = record;
+        this.typeName = type.getQualifiedName().toString();
+    }
+
+    String qualifiedName() {
+        return packageName.isEmpty() ? codecName : packageName + "." + codecName;
+    }
+
+    String write() {
+        if (!packageName.isEmpty()) {
+            line("package " + packageName + ";");
+            line("");
+        }
+
+        line("import com.softwarejoint.bert.BertAtom;");
+        line("import com.softwarejoint.bert.BertCodec;");
+        line("import com.softwarejoint.bert.BertDecoder;");
+        line("import com.softwarejoint.bert.BertEncoder;");
+        line("import com.softwarejoint.bert.BertOutput;");
+        line("import com.softwarejoint.bert.BertPrimitives;");
+        line("");
+        line("import java.io.InvalidObjectException;");
+        line("import java.nio.ByteBuffer;");
+        line("import java.nio.charset.Charset;");
+        line("");
+        line("/**");
+        line(" * Generated from {@link " + typeName + "}, do not edit.");
+        line(" */");
+        line("@SuppressWarnings({\"unchecked\", \"unused\"})");
+        open("public final class " + codecName + " implements BertCodec<" + typeName + ">");
+        line("");
+        line("public static final " + codecName + " INSTANCE = new " + codecName + "();");
+        line("");
+        writeConstants();
+        line("");
+        writeEncode();
+        line("");
+        writeDecode();
+        if (hasEnums()) {
+            line("");
+            open("private static BertAtom[] atoms(Enum<?>[] values)");
+            line("BertAtom[] atoms = new BertAtom[values.length];");
+            open("for (int i = 0; i < values.length; i++)");
+            line("atoms[i] = new BertAtom(values[i].name());");
+            close();
+            line("return atoms;");
+            close();
+            writeEnumLookups();
+        }
+        close();
+        return out.toString();
+    }
+
+    private void writeConstants() {
+        if (!term.tag().isEmpty()) {
+            line("private static final BertAtom TAG = new BertAtom(" + literal(term.tag()) + ");");
+        }
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+
+            if (term.shape() != BertTerm.Shape.TUPLE) {
+                if (term.keys() == BertTerm.Keys.ATOM) {
+                    line("private static final BertAtom KEY_" + i + " = new BertAtom(" + literal(field.key) + ");");
+                } else {
+                    line("private static final byte[] KEY_" + i + " = " + literal(field.key)
+                            + ".getBytes(Charset.forName(\"UTF-8\"));");
+                }
+            }
+
+            if (field.kind == BertCodecProcessor.Kind.ENUM) {
+                line("private static final BertAtom[] ATOMS_" + i + " = atoms(" + field.type + ".values());");
+            }
+        }
+    }
+
+    private void writeEnumLookups() {
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            if (field.kind != BertCodecProcessor.Kind.ENUM) continue;
+
+            line("");
+            open("private static " + field.type + " enum" + i + "(String name) throws InvalidObjectException");
+            open("try");
+            line("return " + field.type + ".valueOf(name);");
+            indent--;
+            open("} catch (IllegalArgumentException e)");
+            line("throw new InvalidObjectException(\"Unknown " + field.type + " \" + name);");
+            close();
+            close();
+        }
+    }
+
+    private boolean hasEnums() {
+        for (Field field : fields) {
+            if (field.kind == BertCodecProcessor.Kind.ENUM) return true;
+        }
+        return false;
+    }
+
+    private void writeEncode() {
+        line("@Override");
+        open("public void encode(" + typeName + " value, BertOutput out, BertEncoder encoder)");
+        open("if (value == null)");
+        line(PRIMITIVES + ".writeNil(out);");
+        line("return;");
+        close();
+        line("");
+
+        switch (term.shape()) {
+            case TUPLE:
+                int arity = fields.size() + (term.tag().isEmpty() ? 0 : 1);
+                line(PRIMITIVES + ".writeTupleHeader(out, " + arity + ");");
+                if (!term.tag().isEmpty()) line(PRIMITIVES + ".writeAtom(out, TAG);");
+                break;
+            case MAP:
+                line(PRIMITIVES + ".writeMapHeader(out, " + fields.size() + ");");
+                break;
+            case PROPLIST:
+                line(PRIMITIVES + ".writeListHeader(out, " + fields.size() + ");");
+                break;
+        }
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            line("");
+            line(field.type + " f" + i + " = " + field.read + ";");
+
+            if (term.shape() == BertTerm.Shape.PROPLIST) {
+                line(PRIMITIVES + ".writeTupleHeader(out, 2);");
+            }
+            if (term.shape() != BertTerm.Shape.TUPLE) {
+                line((term.keys() == BertTerm.Keys.ATOM ? PRIMITIVES + ".writeAtom" : PRIMITIVES + ".writeBinary")
+                        + "(out, KEY_" + i + ");");
+            }
+
+            writeValue(field, i);
+        }
+
+        if (term.shape() == BertTerm.Shape.PROPLIST) {
+            line(PRIMITIVES + ".writeNil(out);");
+        }
+        close();
+    }
+
+    private void writeValue(Field field, int i) {
+        String v = "f" + i;
+
+        switch (field.kind) {
+            case INT:
+            case SHORT:
+            case BYTE:
+                line(PRIMITIVES + ".writeInt(out, " + v + ");");
+                return;
+            case LONG:
+                line(PRIMITIVES + ".writeLong(out, " + v + ");");
+                return;
+            case DOUBLE:
+            case FLOAT:
+                line(PRIMITIVES + ".writeDouble(out, " + v + ");");
+                return;
+            case BOOLEAN:
+                line(PRIMITIVES + ".writeBoolean(out, " + v + ");");
+                return;
+            case OTHER:
+                line("encoder.encodeValue(" + v + ", out);");
+                return;
+            case STRING:
+                if (!term.stringsAsBinary()) {
+                    line("encoder.encodeValue(" + v + ", out);");
+                    return;
+                }
+                break;
+        }
+
+        line("if (" + v + " == null) " + PRIMITIVES + ".writeNil(out);");
+
+        switch (field.kind) {
+            case BOXED_INT:
+            case BOXED_SHORT:
+            case BOXED_BYTE:
+                line("else " + PRIMITIVES + ".writeInt(out, " + v + ");");
+                break;
+            case BOXED_LONG:
+                line("else " + PRIMITIVES + ".writeLong(out, " + v + ");");
+                break;
+            case BOXED_DOUBLE:
+            case BOXED_FLOAT:
+                line("else " + PRIMITIVES + ".writeDouble(out, " + v + ");");
+                break;
+            case BOXED_BOOLEAN:
+                line("else " + PRIMITIVES + ".writeBoolean(out, " + v + ");");
+                break;
+            case STRING:
+            case BYTES:
+                line("else " + PRIMITIVES + ".writeBinary(out, " + v + ");");
+                break;
+            case ATOM:
+                line("else " + PRIMITIVES + ".writeAtom(out, " + v + ");");
+                break;
+            case ENUM:
+                line("else " + PRIMITIVES + ".writeAtom(out, ATOMS_" + i + "[" + v + ".ordinal()]);");
+                break;
+            case NESTED:
+                line("else " + nestedCodec(field) + ".INSTANCE.encode(" + v + ", out, encoder);");
+                break;
+        }
+    }
+
+    private void writeDecode() {
+        line("@Override");
+        open("public " + typeName + " decode(ByteBuffer in, BertDecoder decoder) throws InvalidObjectException");
+        if (term.shape() != BertTerm.Shape.PROPLIST) {
+            //a proplist decodes [] as an instance with default fields, like an empty map would
+            line("if (" + PRIMITIVES + ".readNil(in)) return null;");
+            line("");
+        }
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            line(field.type + " f" + i + " = " + defaultValue(field) + ";");
+        }
+        if (!fields.isEmpty()) line("");
+
+        switch (term.shape()) {
+            case TUPLE:
+                int arity = fields.size() + (term.tag().isEmpty() ? 0 : 1);
+                line("int arity = " + PRIMITIVES + ".readTupleHeader(in);");
+                open("if (arity != " + arity + ")");
+                line("throw new InvalidObjectException(\"Expected " + arity + " elements for "
+                        + type.getSimpleName() + " but got \" + arity);");
+                close();
+                if (!term.tag().isEmpty()) {
+                    line("String tag = " + PRIMITIVES + ".readAtomText(in);");
+                    open("if (!TAG.get().equals(tag))");
+                    line("throw new InvalidObjectException(\"Expected tag \" + TAG + \" but got \" + tag);");
+                    close();
+                }
+                for (int i = 0; i < fields.size(); i++) {
+                    line("f" + i + " = " + readValue(fields.get(i), i) + ";");
+                }
+                break;
+            case MAP:
+                line("int pairs = " + PRIMITIVES + ".readMapHeader(in);");
+                open("for (int i = 0; i < pairs; i++)");
+                writeKeyedValue();
+                close();
+                break;
+            case PROPLIST:
+                line("int length = " + PRIMITIVES + ".readListHeader(in);");
+                open("for (int i = 0; i < length; i++)");
+                open("if (" + PRIMITIVES + ".readTupleHeader(in) != 2)");
+                line("throw new InvalidObjectException(\"Expected {Key, Value} in " + type.getSimpleName() + "\");");
+                close();
+                writeKeyedValue();
+                close();
+                line(PRIMITIVES + ".readListTail(in);");
+                break;
+        }
+
+        line("");
+        if (record) {
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) arguments.append(", ");
+                arguments.append("f").append(i);
+            }
+            line("return new " + typeName + "(" + arguments + ");");
+        } else {
+            line(typeName + " value = new " + typeName + "();");
+            for (int i = 0; i < fields.size(); i++) {
+                line(String.format(fields.get(i).write, "f" + i));
+            }
+            line("return value;");
+        }
+        close();
+    }
+
+    private void writeKeyedValue() {
+        line("String key = " + PRIMITIVES + ".readString(in);");
+        open("if (key == null)");
+        line(PRIMITIVES + ".skip(in);");
+        line("continue;");
+        close();
+        open("switch (key)");
+        for (int i = 0; i < fields.size(); i++) {
+            line("case " + literal(fields.get(i).key) + ":");
+            indent++;
+            line("f" + i + " = " + readValue(fields.get(i), i) + ";");
+            line("break;");
+            indent--;
+        }
+        line("default:");
+        indent++;
+        line(PRIMITIVES + ".skip(in);");
+        indent--;
+        close();
+    }
+
+    private String readValue(Field field, int i) {
+        String orNull = PRIMITIVES + ".readNil(in) ? null : ";
+
+        switch (field.kind) {
+            case INT:
+                return PRIMITIVES + ".readInt(in)";
+            case SHORT:
+                return "(short) " + PRIMITIVES + ".readInt(in)";
+            case BYTE:
+                return "(byte) " + PRIMITIVES + ".readInt(in)";
+            case LONG:
+                return PRIMITIVES + ".readLong(in)";
+            case DOUBLE:
+                return PRIMITIVES + ".readDouble(in)";
+            case FLOAT:
+                return "(float) " + PRIMITIVES + ".readDouble(in)";
+            case BOOLEAN:
+                return PRIMITIVES + ".readBoolean(in)";
+            case BOXED_INT:
+                return orNull + "Integer.valueOf(" + PRIMITIVES + ".readInt(in))";
+            case BOXED_SHORT:
+                return orNull + "Short.valueOf((short) " + PRIMITIVES + ".readInt(in))";
+            case BOXED_BYTE:
+                return orNull + "Byte.valueOf((byte) " + PRIMITIVES + ".readInt(in))";
+            case BOXED_LONG:
+                return orNull + "Long.valueOf(" + PRIMITIVES + ".readLong(in))";
+            case BOXED_DOUBLE:
+                return orNull + "Double.valueOf(" + PRIMITIVES + ".readDouble(in))";
+            case BOXED_FLOAT:
+                return orNull + "Float.valueOf((float) " + PRIMITIVES + ".readDouble(in))";
+            case BOXED_BOOLEAN:
+                return orNull + "Boolean.valueOf(" + PRIMITIVES + ".readBoolean(in))";
+            case STRING:
+                return PRIMITIVES + ".readString(in)";
+            case BYTES:
+                return orNull + PRIMITIVES + ".readBinary(in)";
+            case ATOM:
+                return orNull + PRIMITIVES + ".readAtom(in)";
+            case ENUM:
+                return orNull + "enum" + i + "(" + PRIMITIVES + ".readAtomText(in))";
+            case NESTED:
+                return nestedCodec(field) + ".INSTANCE.decode(in, decoder)";
+            default:
+                return "(" + field.type + ") decoder.decodeValue(in)";
+        }
+    }
+
+    private static String defaultValue(Field field) {
+        switch (field.kind) {
+            case INT:
+            case LONG:
+            case DOUBLE:
+                return "0";
+            case SHORT:
+                return "(short) 0";
+            case BYTE:
+                return "(byte) 0";
+            case FLOAT:
+                return "0f";
+            case BOOLEAN:
+                return "false";
+            default:
+                return "null";
+        }
+    }
+
+    private static String nestedCodec(Field field) {
+        TypeElement nested = (TypeElement) ((DeclaredType) field.type).asElement();
+        String packageName = BertCodecProcessor.packageOf(nested);
+        String name = BertCodecProcessor.codecName(nested);
+        return packageName.isEmpty() ? name : packageName + "." + name;
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') literal.append('\\').append(c);
+            else if (c < 0x20 || c > 0x7e) literal.append(String.format("\\u%04x", (int) c));
+            else literal.append(c);
+        }
+        return literal.append('"').toString();
+    }
+
+    private void open(String statement) {
+        line(statement + " {");
+        indent++;
+    }
+
+    private void close() {
+        indent--;
+        line("}");
+    }
+
+    private void line(String text) {
+        if (!text.isEmpty()) {
+            for (int i = 0; i < indent; i++) {
+                out.append("    ");
+            }
+            out.append(text);
+        }
+        out.append('\n');
+    }
+}